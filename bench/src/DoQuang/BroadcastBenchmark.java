@@ -0,0 +1,78 @@
+package DoQuang;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+// ChatServer.broadcast() toi N client trong cung tien trinh (khong co socket).
+// Moi client gia lap writer: lay frame ra khoi hang doi va lay view theo codec cua no.
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int recipients;
+
+    @Param({"binary", "legacy"})
+    public String codecName;
+
+    private ChatServer server;
+    private ChatMessage message;
+
+    static final class SinkClient extends ChatServer.ClientHandler {
+        private final Blackhole blackhole;
+
+        SinkClient(ChatServer server, ChatCodec codec, Blackhole blackhole) {
+            super(server);
+            this.codec = codec;
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        protected void frameQueued() {
+            ChatFrame frame;
+            while ((frame = outbound.poll()) != null) {
+                try {
+                    blackhole.consume(frame.view(codec));
+                } catch (java.io.IOException e) {
+                    throw new IllegalStateException(e);
+                } finally {
+                    frame.release();
+                }
+            }
+        }
+
+        @Override
+        protected void pauseReading(long nanos) {
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return "in-process";
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        server = new ChatServer(0);
+        server.setHistoryBackfill(0, 1);
+        ChatCodec codec = ChatCodecs.byName(codecName);
+        for (int i = 0; i < recipients; i++) {
+            server.clientConnected(new SinkClient(server, codec, blackhole));
+        }
+        message = new ChatMessage("benchmark-user", RoomRegistry.DEFAULT_ROOM, "hello everyone in the lobby");
+    }
+
+    @Benchmark
+    public void broadcast() {
+        server.broadcast(message);
+    }
+}
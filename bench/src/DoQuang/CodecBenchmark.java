@@ -0,0 +1,44 @@
+package DoQuang;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Ma hoa / giai ma mot ChatMessage voi tung codec
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+
+    @Param({"binary", "legacy"})
+    public String codecName;
+
+    @Param({"32", "1024"})
+    public int bodyLength;
+
+    private ChatCodec codec;
+    private ChatMessage message;
+    private ByteBuffer payload;
+
+    @Setup
+    public void setup() throws Exception {
+        codec = ChatCodecs.byName(codecName);
+        message = new ChatMessage("benchmark-user", "lobby", "x".repeat(bodyLength));
+        ByteBuffer frame = codec.encode(message);
+        frame.position(4);
+        payload = frame.slice();
+    }
+
+    @Benchmark
+    public ByteBuffer encode() throws Exception {
+        return codec.encode(message);
+    }
+
+    @Benchmark
+    public ChatMessage decode() throws Exception {
+        return codec.decode(payload);
+    }
+}
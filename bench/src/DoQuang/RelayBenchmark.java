@@ -0,0 +1,119 @@
+package DoQuang;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Duong relay cua server trong cung tien trinh: mot client gui frame CHAT binary (doc -> broadcast),
+// N client lay frame ra, gom vao WriteBatch va ghi ra kenh bo di (ghi). Khong co socket.
+// ant bench chay voi -prof gc: gc.alloc.rate.norm la so byte cap phat moi message, o trang thai
+// on dinh phai la ~0 (bo dem va ChatFrame deu lay tu pool).
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RelayBenchmark {
+
+    @Param({"1", "10", "100", "1000"})
+    public int recipients;
+
+    private ChatServer server;
+    private SinkClient sender;
+    private ByteBuffer payload;
+
+    // Kenh ghi bo di, chi dich position nhu mot socket ghi het
+    static final GatheringByteChannel DISCARD = new GatheringByteChannel() {
+        @Override
+        public long write(ByteBuffer[] sources, int offset, int length) {
+            long written = 0;
+            for (int i = offset; i < offset + length; i++) {
+                written += write(sources[i]);
+            }
+            return written;
+        }
+
+        @Override
+        public long write(ByteBuffer[] sources) {
+            return write(sources, 0, sources.length);
+        }
+
+        @Override
+        public int write(ByteBuffer source) {
+            int written = source.remaining();
+            source.position(source.limit());
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    static final class SinkClient extends ChatServer.ClientHandler {
+        private final WriteBatch batch = new WriteBatch(256);
+
+        SinkClient(ChatServer server) {
+            super(server);
+            this.codec = ChatCodecs.BINARY;
+        }
+
+        void receive(ByteBuffer payload) throws IOException {
+            received(payload);
+        }
+
+        @Override
+        protected void frameQueued() {
+            ChatFrame frame;
+            try {
+                while ((frame = outbound.poll()) != null) {
+                    dequeued(frame, batch);
+                }
+                write(batch, DISCARD);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        protected void pauseReading(long nanos) {
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return "in-process";
+        }
+
+        @Override
+        public void close() {
+            batch.clear();
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        server = new ChatServer(0);
+        sender = new SinkClient(server);
+        server.clientConnected(sender);
+        for (int i = 0; i < recipients; i++) {
+            server.clientConnected(new SinkClient(server));
+        }
+        // tai cua frame ma client gui, khong co 4 byte do dai
+        ByteBuffer frame = ChatCodecs.BINARY.encode(
+                new ChatMessage("benchmark-user", RoomRegistry.DEFAULT_ROOM, "hello everyone in the lobby"));
+        payload = frame.slice(4, frame.remaining() - 4);
+    }
+
+    @Benchmark
+    public void relay() throws IOException {
+        sender.receive(payload.clear());
+    }
+}
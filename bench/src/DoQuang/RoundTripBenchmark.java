@@ -0,0 +1,71 @@
+package DoQuang;
+
+import java.net.ServerSocket;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+// ChatClient -> ChatServer -> ChatClient qua loopback: thoi gian tu luc gui toi luc client kia nhan duoc
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoundTripBenchmark {
+
+    @Param({"BLOCKING", "NIO"})
+    public ChatServer.IoMode ioMode;
+
+    @Param({"binary", "legacy"})
+    public String codecName;
+
+    private ChatServer server;
+    private ChatClient sender;
+    private ChatClient receiver;
+    private final SynchronousQueue<ChatMessage> received = new SynchronousQueue<>();
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        server = new ChatServer(port, ioMode);
+        server.setHistoryBackfill(0, 1);
+        Thread serverThread = new Thread(server::start, "bench-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(500);
+
+        ChatCodec codec = ChatCodecs.byName(codecName);
+        sender = new ChatClient("localhost", port, message -> { });
+        sender.setCodecs(codec);
+        sender.setWriteBatching(8192, 0);
+        sender.connect();
+        receiver = new ChatClient("localhost", port, message -> {
+            if ("bench".equals(message.getSender())) {
+                try {
+                    received.put(message);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        receiver.setCodecs(codec);
+        receiver.connect();
+        Thread.sleep(500);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        sender.disconnect();
+        receiver.disconnect();
+        server.stop();
+    }
+
+    @Benchmark
+    public ChatMessage roundTrip() throws Exception {
+        sender.sendMessage("bench", "ping");
+        return received.poll(5, TimeUnit.SECONDS);
+    }
+}
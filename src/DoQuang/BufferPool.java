@@ -0,0 +1,92 @@
+package DoQuang;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+// Bo dem direct dung lai, chia theo lop kich thuoc luy thua cua 2 (MIN_CLASS_BYTES .. MAX_CLASS_BYTES).
+// acquire(n) tra ve bo dem capacity >= n voi position 0, limit n; release() tra no ve lop cua no.
+// Moi lop la mot ngan xep co gioi han, chi khoa trong vai lenh; lop day hoac bo dem lon hon
+// MAX_CLASS_BYTES thi de cho GC. Quen release chi lam pool truot mot lan, khong hong du lieu,
+// nhung release hai lan thi hai noi dung chung mot bo dem: moi bo dem chi mot chu so huu.
+// Tong so byte giu lai: -Dchat.buffer.pool.bytes=N (mac dinh 64 MB, chia deu cho cac lop).
+final class BufferPool {
+    static final int MIN_CLASS_BYTES = 256;
+    // du cho frame lon nhat (ChatCodecs.MAX_FRAME_SIZE + do dai)
+    static final int MAX_CLASS_BYTES = 2 * 1024 * 1024;
+
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_CLASS_BYTES);
+    private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_CLASS_BYTES) - MIN_SHIFT + 1;
+    // sau MIN_SHIFT va CLASSES vi constructor dung chung
+    static final BufferPool SHARED = new BufferPool(Long.getLong("chat.buffer.pool.bytes", 64L << 20));
+
+    private static final class SizeClass {
+        final ByteBuffer[] free;
+        int size;
+
+        SizeClass(int capacity) {
+            free = new ByteBuffer[capacity];
+        }
+    }
+
+    private final SizeClass[] classes = new SizeClass[CLASSES];
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    BufferPool(long maxPooledBytes) {
+        for (int i = 0; i < CLASSES; i++) {
+            long perClass = maxPooledBytes / CLASSES / (MIN_CLASS_BYTES << i);
+            classes[i] = new SizeClass((int) Math.min(Math.max(perClass, 1), 1 << 16));
+        }
+    }
+
+    ByteBuffer acquire(int size) {
+        int index = classIndex(size);
+        if (index < 0) {
+            misses.increment();
+            return ByteBuffer.allocateDirect(size);
+        }
+        SizeClass sizeClass = classes[index];
+        ByteBuffer buffer = null;
+        synchronized (sizeClass) {
+            if (sizeClass.size > 0) {
+                buffer = sizeClass.free[--sizeClass.size];
+                sizeClass.free[sizeClass.size] = null;
+            }
+        }
+        if (buffer == null) {
+            misses.increment();
+            buffer = ByteBuffer.allocateDirect(MIN_CLASS_BYTES << index);
+        } else {
+            hits.increment();
+        }
+        return buffer.clear().limit(size);
+    }
+
+    void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (!buffer.isDirect() || Integer.bitCount(capacity) != 1) return;
+        int index = classIndex(capacity);
+        if (index < 0 || MIN_CLASS_BYTES << index != capacity) return;
+        SizeClass sizeClass = classes[index];
+        synchronized (sizeClass) {
+            if (sizeClass.size < sizeClass.free.length) {
+                sizeClass.free[sizeClass.size++] = buffer;
+            }
+        }
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    // -1 neu lon hon lop lon nhat
+    private static int classIndex(int size) {
+        if (size > MAX_CLASS_BYTES) return -1;
+        if (size <= MIN_CLASS_BYTES) return 0;
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+}
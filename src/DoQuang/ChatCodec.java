@@ -0,0 +1,507 @@
+package DoQuang;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+// Cach ma hoa mot ChatMessage thanh frame [do dai int][payload].
+// Codec duoc thoa thuan luc ket noi, xem ChatCodecs.
+interface ChatCodec {
+    byte id();
+
+    String name();
+
+    // Tra ve ca frame (gom 4 byte do dai), san sang de ghi
+    ByteBuffer encode(ChatMessage message) throws IOException;
+
+    // payload la phan sau 4 byte do dai
+    ChatMessage decode(ByteBuffer payload) throws IOException;
+}
+
+// Codec cu: payload la mot ChatMessage duoc Java serialize
+final class SerializedChatCodec implements ChatCodec {
+    private static final ObjectInputFilter FILTER =
+            ObjectInputFilter.Config.createFilter("DoQuang.ChatMessage;DoQuang.ChatMessage$Type;java.lang.Enum;java.lang.String;!*");
+
+    @Override
+    public byte id() {
+        return 1;
+    }
+
+    @Override
+    public String name() {
+        return "legacy";
+    }
+
+    @Override
+    public ByteBuffer encode(ChatMessage message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(message);
+        }
+        ByteBuffer frame = ByteBuffer.allocate(4 + bytes.size());
+        frame.putInt(bytes.size()).put(bytes.toByteArray()).flip();
+        return frame;
+    }
+
+    @Override
+    public ChatMessage decode(ByteBuffer payload) throws IOException {
+        byte[] data;
+        int offset;
+        if (payload.hasArray()) {
+            data = payload.array();
+            offset = payload.arrayOffset() + payload.position();
+        } else {
+            data = new byte[payload.remaining()];
+            payload.duplicate().get(data);
+            offset = 0;
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data, offset, payload.remaining()))) {
+            in.setObjectInputFilter(FILTER);
+            return (ChatMessage) in.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new StreamCorruptedException("Invalid chat frame: " + e.getMessage());
+        }
+    }
+}
+
+// Codec nhi phan gon: [type 1 byte][seq 8 byte neu co][sender][room][noi dung UTF-8 toi het frame]
+// sender va room: [do dai 2 byte][UTF-8]. sender null thanh chuoi rong, room rong la null.
+// Bit cao cua type (SEQ_FLAG) bao co so thu tu broadcast, bit RECIPIENT_FLAG bao co nguoi nhan
+// cua tin rieng [do dai 2 byte][UTF-8] ngay sau seq.
+// Frame TYPE_FILE_DATA khong phai ChatMessage, xem FileSpool.
+final class BinaryChatCodec implements ChatCodec {
+    static final byte TYPE_CHAT = 1;
+    static final byte TYPE_JOIN = 2;
+    static final byte TYPE_LEAVE = 3;
+    static final byte TYPE_FILE = 4;
+    static final byte TYPE_FILE_GET = 5;
+    static final byte TYPE_FILE_ACK = 6;
+    static final byte TYPE_FILE_DATA = 7;
+    static final byte TYPE_RESUME = 8;
+    static final byte TYPE_PING = 9;
+    static final byte TYPE_PONG = 10;
+    static final byte TYPE_NICK = 11;
+    static final byte TYPE_ROSTER = 12;
+    static final int SEQ_FLAG = 0x80;
+    static final int RECIPIENT_FLAG = 0x40;
+
+    @Override
+    public byte id() {
+        return 2;
+    }
+
+    @Override
+    public String name() {
+        return "binary";
+    }
+
+    @Override
+    public ByteBuffer encode(ChatMessage message) throws IOException {
+        byte[] sender = utf8(message.getSender());
+        byte[] room = utf8(message.getRoom());
+        byte[] body = utf8(message.getMessage());
+        byte[] recipient = message.getRecipient() == null ? null : utf8(message.getRecipient());
+        if (sender.length > 0xFFFF || room.length > 0xFFFF || (recipient != null && recipient.length > 0xFFFF)) {
+            throw new IOException("Sender, room or recipient too long");
+        }
+        long seq = message.getSeq();
+        int length = 1 + (seq != 0 ? 8 : 0) + (recipient != null ? 2 + recipient.length : 0)
+                + 2 + sender.length + 2 + room.length + body.length;
+        ChatCodecs.checkLength(length);
+        ByteBuffer frame = ByteBuffer.allocate(4 + length);
+        int code = typeCode(message.getType()) | (seq != 0 ? SEQ_FLAG : 0) | (recipient != null ? RECIPIENT_FLAG : 0);
+        frame.putInt(length).put((byte) code);
+        if (seq != 0) {
+            frame.putLong(seq);
+        }
+        if (recipient != null) {
+            frame.putShort((short) recipient.length).put(recipient);
+        }
+        frame.putShort((short) sender.length).put(sender);
+        frame.putShort((short) room.length).put(room);
+        frame.put(body).flip();
+        return frame;
+    }
+
+    @Override
+    public ChatMessage decode(ByteBuffer payload) throws IOException {
+        ByteBuffer in = payload.duplicate();
+        if (in.remaining() < 1) {
+            throw new StreamCorruptedException("Truncated chat frame");
+        }
+        byte code = in.get();
+        long seq = 0;
+        if ((code & SEQ_FLAG) != 0) {
+            if (in.remaining() < 8) {
+                throw new StreamCorruptedException("Truncated chat frame");
+            }
+            seq = in.getLong();
+        }
+        String recipient = (code & RECIPIENT_FLAG) != 0 ? shortString(in) : null;
+        ChatMessage.Type type = type((byte) (code & ~(SEQ_FLAG | RECIPIENT_FLAG)));
+        String sender = shortString(in);
+        String room = shortString(in);
+        String body = string(in, in.remaining());
+        ChatMessage message = new ChatMessage(type, sender, room.isEmpty() ? null : room, recipient, body);
+        return seq != 0 ? message.withSeq(seq) : message;
+    }
+
+    private static byte typeCode(ChatMessage.Type type) {
+        switch (type) {
+            case JOIN: return TYPE_JOIN;
+            case LEAVE: return TYPE_LEAVE;
+            case FILE: return TYPE_FILE;
+            case FILE_GET: return TYPE_FILE_GET;
+            case FILE_ACK: return TYPE_FILE_ACK;
+            case RESUME: return TYPE_RESUME;
+            case PING: return TYPE_PING;
+            case PONG: return TYPE_PONG;
+            case NICK: return TYPE_NICK;
+            case ROSTER: return TYPE_ROSTER;
+            default: return TYPE_CHAT;
+        }
+    }
+
+    private static ChatMessage.Type type(byte code) throws IOException {
+        switch (code) {
+            case TYPE_CHAT: return ChatMessage.Type.CHAT;
+            case TYPE_JOIN: return ChatMessage.Type.JOIN;
+            case TYPE_LEAVE: return ChatMessage.Type.LEAVE;
+            case TYPE_FILE: return ChatMessage.Type.FILE;
+            case TYPE_FILE_GET: return ChatMessage.Type.FILE_GET;
+            case TYPE_FILE_ACK: return ChatMessage.Type.FILE_ACK;
+            case TYPE_RESUME: return ChatMessage.Type.RESUME;
+            case TYPE_PING: return ChatMessage.Type.PING;
+            case TYPE_PONG: return ChatMessage.Type.PONG;
+            case TYPE_NICK: return ChatMessage.Type.NICK;
+            case TYPE_ROSTER: return ChatMessage.Type.ROSTER;
+            default: throw new StreamCorruptedException("Unknown frame type: " + code);
+        }
+    }
+
+    private static byte[] utf8(String value) {
+        return value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String shortString(ByteBuffer in) throws IOException {
+        if (in.remaining() < 2) {
+            throw new StreamCorruptedException("Truncated chat frame");
+        }
+        int length = in.getShort() & 0xFFFF;
+        if (length > in.remaining()) {
+            throw new StreamCorruptedException("Truncated chat frame");
+        }
+        return string(in, length);
+    }
+
+    private static String string(ByteBuffer in, int length) {
+        String value;
+        if (in.hasArray()) {
+            value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return value;
+    }
+}
+
+// Danh sach codec va buoc bat tay chon codec.
+// Client gui:  [MAGIC int][VERSION byte][so codec byte][id codec ...] theo thu tu uu tien
+// Server tra:  [MAGIC int][id codec duoc chon byte], hoac dong ket noi neu khong co codec chung
+// Client noi lai (se gui RESUME) them id RESUMING vao cuoi danh sach: server bo qua ban gui lai
+// lich su luc ket noi, vi ban phat lai cua RESUME da co dung phan con thieu. Server cu bo qua id la.
+final class ChatCodecs {
+    static final int MAGIC = 0x44514348; // "DQCH"
+    static final byte VERSION = 1;
+    // khong phai codec, chi la co trong loi chao
+    static final byte RESUMING = 0x7F;
+    static final int MAX_FRAME_SIZE = 1 << 20;
+
+    static final ChatCodec LEGACY = new SerializedChatCodec();
+    static final ChatCodec BINARY = new BinaryChatCodec();
+    static final List<ChatCodec> ALL = List.of(BINARY, LEGACY);
+
+    private ChatCodecs() {}
+
+    static ChatCodec byId(int id) {
+        for (ChatCodec codec : ALL) {
+            if (codec.id() == id) return codec;
+        }
+        return null;
+    }
+
+    static ChatCodec byName(String name) {
+        for (ChatCodec codec : ALL) {
+            if (codec.name().equalsIgnoreCase(name)) return codec;
+        }
+        throw new IllegalArgumentException("Unknown codec: " + name);
+    }
+
+    static void checkLength(int length) throws IOException {
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new StreamCorruptedException("Invalid frame length: " + length);
+        }
+    }
+
+    static ByteBuffer hello(List<ChatCodec> offered) {
+        return hello(offered, false);
+    }
+
+    static ByteBuffer hello(List<ChatCodec> offered, boolean resuming) {
+        int count = offered.size() + (resuming ? 1 : 0);
+        ByteBuffer hello = ByteBuffer.allocate(6 + count);
+        hello.putInt(MAGIC).put(VERSION).put((byte) count);
+        for (ChatCodec codec : offered) {
+            hello.put(codec.id());
+        }
+        if (resuming) {
+            hello.put(RESUMING);
+        }
+        return hello.flip();
+    }
+
+    static boolean resuming(byte[] offered) {
+        for (byte id : offered) {
+            if (id == RESUMING) return true;
+        }
+        return false;
+    }
+
+    // Doc loi chao cua client tu buffer (che do doc). Tra ve null neu chua du byte.
+    static byte[] parseHello(ByteBuffer in) throws IOException {
+        if (in.remaining() < 6) return null;
+        int start = in.position();
+        if (in.getInt(start) != MAGIC) {
+            throw new StreamCorruptedException("Not a chat client");
+        }
+        int count = in.get(start + 5) & 0xFF;
+        if (in.remaining() < 6 + count) return null;
+        byte[] ids = new byte[count];
+        in.position(start + 6);
+        in.get(ids);
+        return ids;
+    }
+
+    static ChatCodec choose(byte[] offered, List<ChatCodec> enabled) throws IOException {
+        for (byte id : offered) {
+            for (ChatCodec codec : enabled) {
+                if (codec.id() == id) return codec;
+            }
+        }
+        throw new IOException("No common codec");
+    }
+
+    static ByteBuffer helloReply(ChatCodec chosen) {
+        return ByteBuffer.allocate(5).putInt(MAGIC).put(chosen.id()).flip();
+    }
+
+    static ChatCodec clientHandshake(DataInputStream in, DataOutputStream out, List<ChatCodec> offered, boolean resuming) throws IOException {
+        ByteBuffer hello = hello(offered, resuming);
+        out.write(hello.array(), 0, hello.limit());
+        out.flush();
+        if (in.readInt() != MAGIC) {
+            throw new StreamCorruptedException("Not a chat server");
+        }
+        ChatCodec codec = byId(in.readUnsignedByte());
+        if (codec == null) {
+            throw new IOException("Server chose an unknown codec");
+        }
+        return codec;
+    }
+
+    // Doc loi chao cua client (luong blocking), tra ve cac id client gui
+    static byte[] readHello(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new StreamCorruptedException("Not a chat client");
+        }
+        in.readUnsignedByte(); // version
+        byte[] ids = new byte[in.readUnsignedByte()];
+        in.readFully(ids);
+        return ids;
+    }
+
+    static ChatCodec serverHandshake(byte[] offered, DataOutputStream out, List<ChatCodec> enabled) throws IOException {
+        ChatCodec codec = choose(offered, enabled);
+        ByteBuffer reply = helloReply(codec);
+        out.write(reply.array(), 0, reply.limit());
+        out.flush();
+        return codec;
+    }
+
+    static void write(DataOutputStream out, ChatCodec codec, ChatMessage message) throws IOException {
+        ByteBuffer frame = codec.encode(message);
+        out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+    }
+
+    static ChatMessage read(DataInputStream in, ChatCodec codec) throws IOException {
+        int length = in.readInt();
+        checkLength(length);
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return codec.decode(ByteBuffer.wrap(payload));
+    }
+}
+
+// Mot ChatMessage da ma hoa, dung chung cho moi nguoi nhan trong mot lan broadcast.
+// Moi codec chi ma hoa mot lan; writer cua moi nguoi nhan chep frame vao WriteBatch cua no.
+// Frame relay (MessageView.relay) nam trong bo dem cua BufferPool va co dem tham chieu: noi nao
+// giu frame lau hon ham tao ra no (hang doi gui, HistoryRing, worker NIO) thi retain() truoc va
+// release() khi xong, lan release cuoi tra bo dem ve pool. ChatMessage cua frame relay chi duoc
+// giai ma khi can (listener, codec legacy). Frame thuong nam tren heap, retain/release khong lam gi.
+final class ChatFrame {
+    private static final AtomicIntegerFieldUpdater<ChatFrame> REFS =
+            AtomicIntegerFieldUpdater.newUpdater(ChatFrame.class, "refs");
+    // frame relay da tra ve pool, relay() lay lai thay vi tao moi
+    static final int FREE_FRAMES = 4096;
+    private static final ChatFrame[] FREE = new ChatFrame[FREE_FRAMES];
+    private static int freeCount;
+
+    private volatile ChatMessage message;
+    private long seq;
+    private String room;
+    private long createdNanos = System.nanoTime();
+    // frame relay: dem tham chieu, khi ve 0 thi tra bo dem va chinh frame ve pool
+    private final boolean relay;
+    // frame binary trong pool (chi frame relay), tu 0 toi limit
+    private ByteBuffer pooled;
+    private volatile int refs = 1;
+    // cac codec khac, tao khi can
+    private ByteBuffer[] encoded;
+    // vi tri va kich thuoc trong HistoryRing cua phong, HistoryRing ghi truoc khi dua frame vao vong
+    long historySeq;
+    int historyBytes;
+
+    ChatFrame(ChatMessage message) {
+        this.message = message;
+        this.seq = message == null ? 0 : message.getSeq();
+        this.room = message == null ? null : message.getRoom();
+        this.relay = false;
+    }
+
+    private ChatFrame() {
+        this.relay = true;
+    }
+
+    // Frame relay: pooled la ca frame binary, thuoc ve frame nay tu bay gio
+    static ChatFrame relay(ByteBuffer pooled, long seq, String room) {
+        ChatFrame frame = null;
+        synchronized (FREE) {
+            if (freeCount > 0) {
+                frame = FREE[--freeCount];
+                FREE[freeCount] = null;
+            }
+        }
+        if (frame == null) {
+            frame = new ChatFrame();
+        }
+        frame.pooled = pooled;
+        frame.seq = seq;
+        frame.room = room;
+        frame.createdNanos = System.nanoTime();
+        frame.historySeq = -1;
+        // ghi volatile sau cung: ai thay refs = 1 thi thay ca cac truong tren
+        frame.refs = 1;
+        return frame;
+    }
+
+    ChatMessage getMessage() {
+        ChatMessage decoded = message;
+        if (decoded == null && relay) {
+            try {
+                decoded = message = ChatCodecs.BINARY.decode(pooled.slice(4, pooled.limit() - 4));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return decoded;
+    }
+
+    long seq() {
+        return seq;
+    }
+
+    String room() {
+        return room;
+    }
+
+    // System.nanoTime() luc tao frame, dung de do thoi gian nam trong hang doi
+    long createdNanos() {
+        return createdNanos;
+    }
+
+    // Kich thuoc frame theo codec nhi phan, dung cho cac gioi han theo byte
+    int size() throws IOException {
+        return encoded(ChatCodecs.BINARY).remaining();
+    }
+
+    // View chi doc, moi nguoi nhan co position/limit rieng
+    ByteBuffer view(ChatCodec codec) throws IOException {
+        return encoded(codec).asReadOnlyBuffer();
+    }
+
+    // Buffer dung chung: chi doc theo vi tri tuyet doi, khong doi position/limit
+    ByteBuffer encoded(ChatCodec codec) throws IOException {
+        if (relay && codec == ChatCodecs.BINARY) return pooled;
+        int index = ChatCodecs.ALL.indexOf(codec);
+        synchronized (this) {
+            if (encoded == null) {
+                encoded = new ByteBuffer[ChatCodecs.ALL.size()];
+            }
+            ByteBuffer frame = encoded[index];
+            if (frame == null) {
+                frame = encoded[index] = codec.encode(getMessage());
+            }
+            return frame;
+        }
+    }
+
+    // Chi goi khi dang giu mot tham chieu
+    void retain() {
+        if (relay) REFS.getAndIncrement(this);
+    }
+
+    // Lay them tham chieu tu noi khong giu tham chieu nao (vd. HistoryRing.snapshot());
+    // false neu frame da duoc tra ve pool. Frame co the da duoc relay() dung lai cho message
+    // khac, nguoi goi phai kiem tra lai no con la frame minh can (vd. historySeq).
+    boolean tryRetain() {
+        if (!relay) return true;
+        while (true) {
+            int current = refs;
+            if (current == 0) return false;
+            if (REFS.compareAndSet(this, current, current + 1)) return true;
+        }
+    }
+
+    void release() {
+        if (!relay) return;
+        int left = REFS.decrementAndGet(this);
+        if (left == 0) {
+            BufferPool.SHARED.release(pooled);
+            pooled = null;
+            room = null;
+            message = null;
+            synchronized (this) {
+                encoded = null;
+            }
+            synchronized (FREE) {
+                if (freeCount < FREE_FRAMES) {
+                    FREE[freeCount++] = this;
+                }
+            }
+        } else if (left < 0) {
+            throw new IllegalStateException("ChatFrame released more often than retained");
+        }
+    }
+
+    static void releaseAll(Collection<ChatFrame> frames) {
+        for (ChatFrame frame : frames) {
+            frame.release();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package DoQuang;
+
+import java.nio.channels.SocketChannel;
+import jdk.jfr.*;
+
+// Cac event JFR cua server. Khi khong co recording nao bat event thi new + begin + shouldCommit
+// gan nhu khong ton gi (JIT bo luon doi tuong), nen co the de recording chay lien tuc:
+//   java -XX:StartFlightRecording:settings=default,filename=chat.jfr -jar dist/DoAnUDChat.jar
+// Event co thoi gian chi duoc ghi khi vuot threshold; muon ghi moi broadcast thi ha threshold:
+//   -XX:StartFlightRecording:settings=default,+DoQuang.Broadcast#threshold=0ms
+final class ChatEvents {
+
+    private ChatEvents() {
+    }
+
+    static void accepted(SocketChannel channel, ChatServer.IoMode ioMode) {
+        Accept event = new Accept();
+        if (event.isEnabled()) {
+            event.remoteAddress = String.valueOf(channel.socket().getRemoteSocketAddress());
+            event.ioMode = ioMode.name();
+            event.commit();
+        }
+    }
+
+    @Name("DoQuang.Accept")
+    @Label("Client Accept")
+    @Category({"DoQuang", "Chat Server"})
+    @StackTrace(false)
+    static final class Accept extends Event {
+        @Label("Remote Address")
+        String remoteAddress;
+
+        @Label("I/O Mode")
+        String ioMode;
+    }
+
+    // Tu luc accept toi khi da chon xong codec
+    @Name("DoQuang.Handshake")
+    @Label("Codec Handshake")
+    @Category({"DoQuang", "Chat Server"})
+    @StackTrace(false)
+    static final class Handshake extends Event {
+        @Label("Remote Address")
+        String remoteAddress;
+
+        @Label("Codec")
+        String codec;
+    }
+
+    @Name("DoQuang.Disconnect")
+    @Label("Client Disconnect")
+    @Category({"DoQuang", "Chat Server"})
+    @StackTrace(false)
+    static final class Disconnect extends Event {
+        @Label("Remote Address")
+        String remoteAddress;
+
+        @Label("Reason")
+        String reason;
+
+        @Label("Queued Frames")
+        int queuedFrames;
+
+        @Label("Dropped Frames")
+        long droppedFrames;
+    }
+
+    @Name("DoQuang.Broadcast")
+    @Label("Broadcast")
+    @Description("Ma hoa, ghi log va dua mot message vao hang doi cua moi nguoi nhan")
+    @Category({"DoQuang", "Chat Server"})
+    @StackTrace(false)
+    @Threshold("1 ms")
+    static final class Broadcast extends Event {
+        @Label("Room")
+        String room;
+
+        @Label("Sender")
+        String sender;
+
+        @Label("Recipients")
+        int recipients;
+
+        @Label("Frame Size")
+        @DataAmount
+        int frameBytes;
+    }
+
+    @Name("DoQuang.SlowWrite")
+    @Label("Slow Consumer Write")
+    @Description("Thoi gian mot lan ghi bi nghen: ghi blocking bi chan, hoac NIO cho OP_WRITE toi khi ghi het")
+    @Category({"DoQuang", "Chat Server"})
+    @StackTrace(false)
+    @Threshold("20 ms")
+    static final class SlowWrite extends Event {
+        @Label("Remote Address")
+        String remoteAddress;
+
+        @Label("Frames")
+        int frames;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Queue Depth")
+        int queueDepth;
+    }
+
+    @Name("DoQuang.ListenerDispatch")
+    @Label("Listener Dispatch")
+    @Category({"DoQuang", "Chat Server"})
+    @StackTrace(false)
+    @Threshold("1 ms")
+    static final class ListenerDispatch extends Event {
+        @Label("Listener")
+        Class<?> listener;
+
+        @Label("Room")
+        String room;
+    }
+}
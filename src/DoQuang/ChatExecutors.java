@@ -0,0 +1,74 @@
+package DoQuang;
+
+import java.util.concurrent.*;
+
+// Executor dung chung cho ChatServer, ChatClient va HostGUI.
+// Chon kieu thread bang -Dchat.threads=platform|virtual (mac dinh: platform).
+final class ChatExecutors {
+    public enum Mode { PLATFORM, VIRTUAL }
+
+    private static volatile ExecutorService shared;
+    private static volatile ScheduledExecutorService scheduler;
+    private static volatile TimerWheel timerWheel;
+
+    private ChatExecutors() {}
+
+    static ExecutorService create(Mode mode) {
+        if (mode == Mode.VIRTUAL) {
+            return Executors.newVirtualThreadPerTaskExecutor();
+        }
+        return Executors.newThreadPerTaskExecutor(Thread.ofPlatform().name("chat-", 0).factory());
+    }
+
+    static Mode defaultMode() {
+        String value = System.getProperty("chat.threads", "platform");
+        return Mode.valueOf(value.trim().toUpperCase());
+    }
+
+    static ExecutorService shared() {
+        ExecutorService executor = shared;
+        if (executor == null) {
+            synchronized (ChatExecutors.class) {
+                executor = shared;
+                if (executor == null) {
+                    shared = executor = create(defaultMode());
+                }
+            }
+        }
+        return executor;
+    }
+
+    // Mot thread daemon cho cac tac vu hen gio ngan (vd. flush tre cua ChatClient)
+    static ScheduledExecutorService scheduler() {
+        ScheduledExecutorService executor = scheduler;
+        if (executor == null) {
+            synchronized (ChatExecutors.class) {
+                executor = scheduler;
+                if (executor == null) {
+                    ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(1, task -> {
+                        Thread thread = new Thread(task, "chat-scheduler");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    pool.setRemoveOnCancelPolicy(true);
+                    scheduler = executor = pool;
+                }
+            }
+        }
+        return executor;
+    }
+
+    // Timing wheel dung chung cho timeout cua moi ket noi (vd. keepalive cua ChatClient)
+    static TimerWheel timerWheel() {
+        TimerWheel wheel = timerWheel;
+        if (wheel == null) {
+            synchronized (ChatExecutors.class) {
+                wheel = timerWheel;
+                if (wheel == null) {
+                    timerWheel = wheel = new TimerWheel("chat-timer");
+                }
+            }
+        }
+        return wheel;
+    }
+}
@@ -2,53 +2,325 @@ package DoQuang;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 class ChatMessage implements Serializable {
+    private static final long serialVersionUID = 2L;
+
+    // CHAT: tin nhan thuong, JOIN/LEAVE: vao/roi phong,
+    // FILE/FILE_GET/FILE_ACK: chuyen file, xem FileSpool,
+    // RESUME: client ket noi lai xin cac message da lo, xem ChatServer.resume(),
+    // PING/PONG: heartbeat, ben nhan PING tra PONG; khong hien cho nguoi dung,
+    // NICK: dat/doi nickname (sender), ROSTER: danh sach nguoi online, xem Roster
+    public enum Type { CHAT, JOIN, LEAVE, FILE, FILE_GET, FILE_ACK, RESUME, PING, PONG, NICK, ROSTER }
+
+    private Type type;
     private String sender;
+    private String room;
     private String message;
-    
+    // nickname nguoi nhan cua tin rieng, null neu la tin cho phong
+    private String recipient;
+    // so thu tu server gan khi broadcast, 0 neu khong phai message broadcast
+    private long seq;
+
     public ChatMessage(String sender, String message) {
+        this(Type.CHAT, sender, null, message);
+    }
+
+    public ChatMessage(String sender, String room, String message) {
+        this(Type.CHAT, sender, room, message);
+    }
+
+    public ChatMessage(Type type, String sender, String room, String message) {
+        this(type, sender, room, null, message);
+    }
+
+    ChatMessage(Type type, String sender, String room, String recipient, String message) {
+        this.type = type;
         this.sender = sender;
+        this.room = room;
+        this.recipient = recipient;
         this.message = message;
     }
-    
+
+    // Tin rieng: server chi gui cho cac ket noi cua recipient, khong qua phong nao
+    public static ChatMessage direct(String sender, String recipient, String message) {
+        return new ChatMessage(Type.CHAT, sender, null, recipient, message);
+    }
+
+    // Ban sao mang so thu tu seq
+    ChatMessage withSeq(long seq) {
+        ChatMessage copy = new ChatMessage(getType(), sender, room, recipient, message);
+        copy.seq = seq;
+        return copy;
+    }
+
+    public Type getType() { return type == null ? Type.CHAT : type; }
     public String getSender() { return sender; }
+    // null: tin cua server gui cho tat ca client
+    public String getRoom() { return room; }
     public String getMessage() { return message; }
+    public String getRecipient() { return recipient; }
+    public long getSeq() { return seq; }
 }
 
 class ChatServer {
+    // BLOCKING: mot thread cho moi client, NIO: vai event loop dung Selector
+    public enum IoMode { BLOCKING, NIO }
+
+    // Gioi han mot lan phat lai cho client ket noi lai, va so ban ghi log doc toi da de tim
+    static final int RESUME_MAX_MESSAGES = 1000;
+    static final int RESUME_MAX_SCAN = 20000;
+    // seq gan cung luc boi nhieu thread co the vao log lech thu tu mot chut
+    static final int RESUME_SLACK = 256;
+
     private int port;
     private Set<ClientHandler> clients = ConcurrentHashMap.newKeySet();
-    private ServerSocket serverSocket;
+    private final RoomRegistry rooms = new RoomRegistry();
+    private final Roster roster = new Roster();
+    private ServerSocketChannel serverChannel;
+    private volatile NioServerTransport nioTransport;
     private volatile boolean running = true;
-    private int connectedClients = 0; 
+    final ServerMetrics metrics = new ServerMetrics(this);
     private List<ServerChatListener> listeners = new ArrayList<>();
+    private IoMode ioMode = IoMode.BLOCKING;
+    // so worker NIO, khong tinh event loop accept
+    private int eventLoops = Runtime.getRuntime().availableProcessors();
+    private ExecutorService executor = ChatExecutors.shared();
+    private List<ChatCodec> codecs = ChatCodecs.ALL;
+    private int outboundCapacity = 1024;
+    private OutboundQueue.OverflowPolicy overflowPolicy = OutboundQueue.OverflowPolicy.DISCONNECT;
+    private long blockTimeoutMillis = 5000;
+    private int maxBatchBytes = 64 * 1024;
+    private long flushDelayNanos = TimeUnit.MILLISECONDS.toNanos(1);
+    private ChatLog chatLog;
+    private volatile SearchIndex searchIndex;
+    private ClusterRelay cluster;
+    private final ConcurrentHashMap<String, HistoryRing> histories = new ConcurrentHashMap<>();
+    private int historyMessages = 50;
+    private long historyBytes = 64 * 1024;
+    // gioi han cua moi client (null: khong gioi han) va cua ca server
+    private double clientMessageRate;
+    private int clientMessageBurst;
+    private long clientByteRate;
+    private long clientByteBurst;
+    private RateLimiter.Action rateLimitAction = RateLimiter.Action.DELAY;
+    private volatile RateLimiter globalLimiter;
+    private FileSpool files;
+    // so thu tu cua broadcast gan nhat; co ChatLog thi tiep tuc tu offset cua log
+    private final AtomicLong lastSeq = new AtomicLong();
+    // heartbeat: client khong gui gi trong pingInterval thi nhan PING, trong idleTimeout thi bi ngat
+    private long pingIntervalNanos = TimeUnit.SECONDS.toNanos(30);
+    private long idleTimeoutNanos = TimeUnit.SECONDS.toNanos(90);
+    private TimerWheel timers;
 
     public ChatServer(int port) {
         this.port = port;
     }
-    
+
+    public ChatServer(int port, IoMode ioMode) {
+        this.port = port;
+        this.ioMode = ioMode;
+    }
+
     public void addServerChatListener(ServerChatListener listener) {
         listeners.add(listener);
     }
-    
+
+    public void setIoMode(IoMode ioMode) {
+        this.ioMode = ioMode;
+    }
+
+    public IoMode getIoMode() {
+        return ioMode;
+    }
+
+    // Executor chay ClientHandler o che do blocking, vd. ChatExecutors.create(Mode.VIRTUAL)
+    public void setExecutor(ExecutorService executor) {
+        this.executor = Objects.requireNonNull(executor);
+    }
+
+    // Cac codec server chap nhan; client chon theo thu tu uu tien cua no
+    public void setCodecs(ChatCodec... codecs) {
+        if (codecs.length == 0) {
+            throw new IllegalArgumentException("At least one codec is required");
+        }
+        this.codecs = List.of(codecs);
+    }
+
+    List<ChatCodec> getCodecs() {
+        return codecs;
+    }
+
+    // Hang doi gui cua moi client: so frame toi da va cach xu ly khi day
+    public void setOutboundQueue(int capacity, OutboundQueue.OverflowPolicy policy) {
+        setOutboundQueue(capacity, policy, blockTimeoutMillis);
+    }
+
+    public void setOutboundQueue(int capacity, OutboundQueue.OverflowPolicy policy, long blockTimeoutMillis) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be >= 1");
+        }
+        this.outboundCapacity = capacity;
+        this.overflowPolicy = Objects.requireNonNull(policy);
+        this.blockTimeoutMillis = blockTimeoutMillis;
+    }
+
+    // Gom frame truoc khi ghi: toi da maxBatchBytes moi lan ghi, va khi dang co
+    // nhieu message lien tiep thi cho toi da flushDelayMicros de gom them
+    public void setWriteBatching(int maxBatchBytes, long flushDelayMicros) {
+        if (maxBatchBytes < 1 || flushDelayMicros < 0) {
+            throw new IllegalArgumentException("Invalid write batching settings");
+        }
+        this.maxBatchBytes = maxBatchBytes;
+        this.flushDelayNanos = TimeUnit.MICROSECONDS.toNanos(flushDelayMicros);
+    }
+
+    int getMaxBatchBytes() {
+        return maxBatchBytes;
+    }
+
+    // So message va so byte gan day cua moi phong duoc gui lai cho client moi vao phong.
+    // messages = 0 de tat.
+    public void setHistoryBackfill(int messages, long bytes) {
+        if (messages < 0 || bytes < 1) {
+            throw new IllegalArgumentException("Invalid history backfill settings");
+        }
+        this.historyMessages = messages;
+        this.historyBytes = bytes;
+        histories.clear();
+    }
+
+    // Luu moi message broadcast vao log tren dia; server dong log khi stop()
+    public void setChatLog(ChatLog chatLog) {
+        this.chatLog = chatLog;
+    }
+
+    ChatLog getChatLog() {
+        return chatLog;
+    }
+
+    // Chay nhu mot node cua cluster: nghe link relay tren relayPort va noi toi cac node khac
+    // ("host:port,host:port", la relay port cua chung). Goi truoc start().
+    public void setCluster(int relayPort, String peers) {
+        this.cluster = new ClusterRelay(this, relayPort, ClusterRelay.parsePeers(peers));
+    }
+
+    // Gioi han message/giay va byte/giay cua moi client, burst la so message / so byte gui lien
+    // duoc truoc khi bi gioi han. rate = 0 de tat chieu do. Ap dung cho client ket noi sau khi goi.
+    public void setRateLimit(double messagesPerSecond, int messageBurst, long bytesPerSecond, long byteBurst,
+            RateLimiter.Action action) {
+        if (messagesPerSecond < 0 || bytesPerSecond < 0 || (messagesPerSecond > 0 && messageBurst < 1)
+                || (bytesPerSecond > 0 && byteBurst < 1)) {
+            throw new IllegalArgumentException("Invalid rate limit settings");
+        }
+        this.clientMessageRate = messagesPerSecond;
+        this.clientMessageBurst = messageBurst;
+        this.clientByteRate = bytesPerSecond;
+        this.clientByteBurst = byteBurst;
+        this.rateLimitAction = Objects.requireNonNull(action);
+    }
+
+    // Gioi han chung cho tong message nhan tu moi client, giu so broadcast trong suc fan-out.
+    // Vuot gioi han chung thi DELAY van cho, con DROP va DISCONNECT chi bo message:
+    // client lam day gioi han chung chua chac la client gay ra.
+    public void setGlobalRateLimit(double messagesPerSecond, int messageBurst, long bytesPerSecond, long byteBurst) {
+        if (messagesPerSecond < 0 || bytesPerSecond < 0 || (messagesPerSecond > 0 && messageBurst < 1)
+                || (bytesPerSecond > 0 && byteBurst < 1)) {
+            throw new IllegalArgumentException("Invalid rate limit settings");
+        }
+        this.globalLimiter = messagesPerSecond > 0 || bytesPerSecond > 0
+                ? new RateLimiter(messagesPerSecond, messageBurst, bytesPerSecond, byteBurst) : null;
+    }
+
+    RateLimiter newClientLimiter() {
+        if (clientMessageRate <= 0 && clientByteRate <= 0) return null;
+        return new RateLimiter(clientMessageRate, clientMessageBurst, clientByteRate, clientByteBurst);
+    }
+
+    // Thu muc spool cho file client gui len, kich thuoc toi da moi file va tong dung luong.
+    // File bi xoa sau FileSpool.FILE_TTL_MINUTES, khi spool day (file lau nhat khong ai tai truoc)
+    // hoac khi server stop. Mac dinh: <tmp>/doquang-spool-<port>, 64 MB, 1 GB.
+    public void setFileTransfer(Path spoolDir, long maxFileBytes, long maxSpoolBytes) {
+        if (maxFileBytes < 0 || maxSpoolBytes < 0) {
+            throw new IllegalArgumentException("Invalid file transfer settings");
+        }
+        this.files = new FileSpool(this, spoolDir, maxFileBytes, maxSpoolBytes);
+    }
+
+    // Heartbeat va don ket noi chet. Client khong gui gi trong pingIntervalMillis thi server gui PING
+    // (client tra PONG); khong gui gi trong idleTimeoutMillis thi bi ngat. 0 de tat tung phan.
+    // Mac dinh 30 s / 90 s. Goi truoc start().
+    public void setHeartbeat(long pingIntervalMillis, long idleTimeoutMillis) {
+        if (pingIntervalMillis < 0 || idleTimeoutMillis < 0
+                || (pingIntervalMillis > 0 && idleTimeoutMillis > 0 && pingIntervalMillis >= idleTimeoutMillis)) {
+            throw new IllegalArgumentException("Invalid heartbeat settings");
+        }
+        this.pingIntervalNanos = TimeUnit.MILLISECONDS.toNanos(pingIntervalMillis);
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+    }
+
+    public void setEventLoops(int eventLoops) {
+        if (eventLoops < 1) {
+            throw new IllegalArgumentException("eventLoops must be >= 1");
+        }
+        this.eventLoops = eventLoops;
+    }
+
     public void start() {
+        if (files == null) {
+            setFileTransfer(Paths.get(System.getProperty("java.io.tmpdir"), "doquang-spool-" + port),
+                    64L << 20, 1L << 30);
+        }
+        try {
+            files.open();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (chatLog != null) {
+            lastSeq.accumulateAndGet(chatLog.nextOffset(), Math::max);
+            searchIndex = new SearchIndex(chatLog);
+            searchIndex.start(executor);
+        } else {
+            // khong co log: seq bat dau tu thoi diem khoi dong (micro giay), lon hon moi seq cua lan
+            // chay truoc, nen RESUME sau khi server khoi dong lai lay du lich su moi ke ca khi server
+            // moi da phat nhieu message hon seq cu cua client
+            lastSeq.accumulateAndGet(TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis()), Math::max);
+        }
+        if (pingIntervalNanos > 0 || idleTimeoutNanos > 0) {
+            timers = new TimerWheel("chat-timer-" + port);
+        }
+        if (ioMode == IoMode.NIO) {
+            startNio();
+            return;
+        }
         try {
-            serverSocket = new ServerSocket(port);
+            // Channel o che do blocking de writer co the dung gathering write
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
             System.out.println("Server is running on port " + port);
+            metrics.register(port);
+            if (cluster != null) {
+                cluster.start(executor);
+            }
             while (running) {
                 try {
-                    Socket socket = serverSocket.accept();
-                    ClientHandler clientHandler = new ClientHandler(socket, this);
-                    clients.add(clientHandler);
-                    connectedClients++; 
-                    System.out.println("New client connected. Total clients: " + connectedClients);                 
-                    new Thread(clientHandler).start();                   
+                    SocketChannel channel = serverChannel.accept();
+                    ChatEvents.accepted(channel, ioMode);
+                    SocketClientHandler clientHandler = new SocketClientHandler(channel, this);
+                    executor.execute(clientHandler);
                 } catch (IOException e) {
-                    if (!running) break; 
+                    if (!running) break;
                 }
             }
         } catch (IOException e) {
@@ -57,84 +329,804 @@ class ChatServer {
             stop();
         }
     }
-    
+
+    private void startNio() {
+        try {
+            nioTransport = new NioServerTransport(this, port, eventLoops);
+            System.out.println("Server is running on port " + port + " (NIO, " + eventLoops + " workers)");
+            metrics.register(port);
+            if (cluster != null) {
+                cluster.start(executor);
+            }
+            // acceptor chay tren thread goi start(), giong nhu vong accept cua che do blocking
+            nioTransport.run();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            stop();
+        }
+    }
+
     public void stop() {
-        broadcast(new ChatMessage("Server", "Closing Server..."));
+        broadcastLocal(new ChatMessage("Server", "Closing Server..."));
         running = false;
         try {
-            if (serverSocket != null && !serverSocket.isClosed()) {
-                serverSocket.close();
+            if (serverChannel != null && serverChannel.isOpen()) {
+                serverChannel.close();
             }
             for (ClientHandler client : clients) {
-                client.close();
+                client.close("server stopped");
             }
             clients.clear();
-            connectedClients = 0; 
-            System.out.println("Server stopped. Total clients: " + connectedClients);
+            rooms.clear();
+            if (nioTransport != null) {
+                nioTransport.close();
+            }
+            if (cluster != null) {
+                cluster.close();
+            }
+            if (files != null) {
+                files.close();
+            }
+            if (searchIndex != null) {
+                searchIndex.close();
+            }
+            if (chatLog != null) {
+                chatLog.close();
+            }
+            if (timers != null) {
+                timers.close();
+            }
+            metrics.unregister();
+            System.out.println("Server stopped. Total clients: " + getConnectedClients());
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
-    
+
+    // Phat cho client cua node nay va, khi chay cluster, cho cac node khac
     public void broadcast(ChatMessage message) {
-        for (ClientHandler client : clients) {
-            client.sendMessage(message);
+        ChatFrame frame = broadcastLocal(message);
+        if (cluster != null && running) {
+            cluster.relay(frame);
+        }
+    }
+
+    // Tin co phong chi gui cho thanh vien phong do, tin khong co phong gui cho moi client.
+    // Khong gui qua cluster: dung cho thong bao cua rieng node va message nhan tu node khac.
+    ChatFrame broadcastLocal(ChatMessage message) {
+        // ma hoa mot lan cho moi codec, moi client chi chep cung frame
+        ChatFrame frame = new ChatFrame(message.withSeq(lastSeq.incrementAndGet()));
+        publish(frame);
+        return frame;
+    }
+
+    // Tin CHAT binary cua client toi phong (ClientHandler.received da parse vao view): kiem tra giong
+    // messageReceived nhung khong giai ma, frame broadcast duoc chep thang tu payload vao bo dem
+    // cua BufferPool. Khong co listener thi ca duong doc -> broadcast -> ghi khong cap phat gi.
+    void relay(ClientHandler client, MessageView view) throws IOException {
+        metrics.messagesIn.increment();
+        String room = view.room();
+        if (room == null) {
+            client.sendMessage(new ChatMessage("Server", "Invalid room name"));
+            return;
+        }
+        if (!rooms.isMember(room, client)) {
+            client.sendMessage(new ChatMessage("Server", "You are not in room " + room));
+            return;
+        }
+        ChatFrame frame = view.relay(lastSeq.incrementAndGet());
+        try {
+            publish(frame);
+        } finally {
+            frame.release();
+        }
+    }
+
+    // Ghi log va lich su roi phat frame da co seq cho client cua node nay
+    private void publish(ChatFrame frame) {
+        ChatEvents.Broadcast event = new ChatEvents.Broadcast();
+        event.begin();
+        long started = frame.createdNanos();
+        String room = frame.room();
+        if (chatLog != null && running) {
+            try {
+                chatLog.append(frame);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (historyMessages > 0 && room != null) {
+            HistoryRing history = histories.get(room);
+            if (history == null) {
+                history = histories.computeIfAbsent(room, name -> new HistoryRing(historyMessages, historyBytes));
+            }
+            try {
+                history.add(frame, frame.size());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        Set<ClientHandler> recipients = room == null ? clients : rooms.members(room);
+        NioServerTransport transport = nioTransport;
+        if (transport != null) {
+            // NIO: moi worker tu phat cho cac ket noi cua no
+            transport.broadcast(frame);
+        } else {
+            for (ClientHandler client : recipients) {
+                client.send(frame);
+            }
+        }
+        metrics.broadcastTime.record(System.nanoTime() - started);
+        event.end();
+        if (event.shouldCommit()) {
+            event.room = room;
+            event.sender = frame.getMessage().getSender();
+            event.recipients = recipients.size();
+            try {
+                event.frameBytes = frame.size();
+            } catch (IOException e) {
+                event.frameBytes = -1;
+            }
+            event.commit();
         }
         for (ServerChatListener listener : listeners) {
-            listener.onMessageReceived(message);
+            ChatEvents.ListenerDispatch dispatch = new ChatEvents.ListenerDispatch();
+            dispatch.begin();
+            listener.onMessageReceived(frame.getMessage());
+            dispatch.end();
+            if (dispatch.shouldCommit()) {
+                dispatch.listener = listener.getClass();
+                dispatch.room = room;
+                dispatch.commit();
+            }
         }
     }
-    
-   
+
+
     public int getConnectedClients() {
-        return connectedClients;
+        return clients.size();
     }
-    
-    private class ClientHandler implements Runnable {
-        private Socket socket;
-        private ChatServer server;
-        private ObjectOutputStream out;
-        
-        public ClientHandler(Socket socket, ChatServer server) {
-            this.socket = socket;
-            this.server = server;
+
+    // So lieu hien tai cua server; cung co qua JMX (DoQuang:type=ChatServer,port=...)
+    public ServerMetrics.Snapshot getMetrics() {
+        return metrics.snapshot();
+    }
+
+    Collection<ClientHandler> clientHandlers() {
+        return clients;
+    }
+
+    // Nickname dang online, theo thu tu ten (khong tinh thay doi chua gui cua dot hien tai)
+    public List<String> getOnlineUsers() {
+        return roster.snapshot();
+    }
+
+    // Tim trong lich su da luu (can ChatLog), ket qua moi nhat truoc. text la cac tu phai co (khong phan
+    // biet hoa thuong, dau), sender va khoang thoi gian co the bo trong (null, Long.MIN_VALUE/MAX_VALUE).
+    public List<SearchIndex.Hit> search(String text, String sender, long fromMillis, long toMillis, int limit)
+            throws IOException {
+        SearchIndex index = searchIndex;
+        if (index == null) {
+            throw new IllegalStateException("Search needs a chat log");
         }
-        
-        public void sendMessage(ChatMessage message) {
+        return index.search(new SearchIndex.Query(text, sender, fromMillis, toMillis, limit));
+    }
+
+    // Cac phong dang mo va so thanh vien
+    public Map<String, Integer> getRooms() {
+        return rooms.snapshot();
+    }
+
+    // So frame dang cho gui cua tung client, theo dia chi cua client
+    public Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> depths = new TreeMap<>();
+        for (ClientHandler client : clients) {
+            depths.put(client.getRemoteAddress(), client.getQueueDepth());
+        }
+        return depths;
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    // Duoc goi khi mot ket noi moi da bat tay xong va san sang nhan message
+    // Gui cac message gan day cua phong cho client vua vao, trong mot lan ghi
+    private void backfill(ClientHandler client, String room) {
+        HistoryRing history = histories.get(room);
+        if (history != null) {
+            List<ChatFrame> frames = history.snapshot();
+            client.sendAll(frames);
+            ChatFrame.releaseAll(frames);
+        }
+    }
+
+    void clientConnected(ClientHandler client) {
+        clientConnected(client, false);
+    }
+
+    // resuming: client bao trong loi chao la se gui RESUME, ban phat lai thay cho backfill
+    void clientConnected(ClientHandler client, boolean resuming) {
+        clients.add(client);
+        rooms.join(RoomRegistry.DEFAULT_ROOM, client);
+        if (!resuming) {
+            backfill(client, RoomRegistry.DEFAULT_ROOM);
+        }
+        metrics.totalConnections.increment();
+        if (timers != null) {
+            idleCheck(client);
+        }
+        System.out.println("New client connected. Total clients: " + getConnectedClients());
+    }
+
+    void clientDisconnected(ClientHandler client) {
+        ChatEvents.Disconnect event = new ChatEvents.Disconnect();
+        if (event.isEnabled()) {
+            event.remoteAddress = client.getRemoteAddress();
+            event.reason = client.getDisconnectReason();
+            event.queuedFrames = client.getQueueDepth();
+            event.droppedFrames = client.getDroppedMessages();
+            event.commit();
+        }
+        rooms.leaveAll(client);
+        roster.remove(client);
+        TimerWheel.Timeout idleCheck = client.idleCheck;
+        if (idleCheck != null) {
+            idleCheck.cancel();
+        }
+        if (files != null) {
+            files.disconnected(client);
+        }
+        if (clients.remove(client)) {
+            System.out.println("Client disconnected. Total clients: " + getConnectedClients());
+        }
+    }
+
+    // Chay tren thread cua timing wheel. Moi client chi co mot timeout, dat lai khi no het han
+    // chu khong phai moi lan doc, nen chi phi heartbeat khong phu thuoc so message.
+    private void idleCheck(ClientHandler client) {
+        if (!running || !clients.contains(client)) return;
+        long idle = System.nanoTime() - client.lastReadNanos;
+        if (idleTimeoutNanos > 0 && idle >= idleTimeoutNanos) {
+            metrics.idleDisconnects.increment();
+            System.out.println("Client " + client.getRemoteAddress() + " idle for "
+                    + TimeUnit.NANOSECONDS.toMillis(idle) + " ms, disconnecting");
+            client.close("idle timeout");
+            return;
+        }
+        long next;
+        if (pingIntervalNanos > 0 && idle >= pingIntervalNanos) {
+            // khong cho tren thread cua wheel: mot client nghen se lam tre moi timeout khac
+            client.trySend(new ChatFrame(new ChatMessage(ChatMessage.Type.PING, "Server", null, null)));
+            if (!clients.contains(client)) return;
+            next = idleTimeoutNanos > 0 ? idleTimeoutNanos - idle : pingIntervalNanos;
+        } else {
+            next = (pingIntervalNanos > 0 ? pingIntervalNanos : idleTimeoutNanos) - idle;
+        }
+        client.idleCheck = timers.schedule(() -> idleCheck(client), next, TimeUnit.NANOSECONDS);
+    }
+
+    void messageReceived(ClientHandler client, ChatMessage message) {
+        metrics.messagesIn.increment();
+        String room = message.getRoom() == null ? RoomRegistry.DEFAULT_ROOM : message.getRoom();
+        if (!RoomRegistry.isValidName(room)) {
+            client.sendMessage(new ChatMessage("Server", "Invalid room name"));
+            return;
+        }
+        switch (message.getType()) {
+            case JOIN:
+                if (rooms.join(room, client)) {
+                    backfill(client, room);
+                    broadcast(new ChatMessage(ChatMessage.Type.JOIN, message.getSender(), room, "has joined " + room));
+                }
+                break;
+            case LEAVE:
+                if (rooms.isMember(room, client)) {
+                    broadcast(new ChatMessage(ChatMessage.Type.LEAVE, message.getSender(), room, "has left " + room));
+                    rooms.leave(room, client);
+                }
+                break;
+            case FILE:
+                if (!rooms.isMember(room, client)) {
+                    client.sendMessage(new ChatMessage("Server", "You are not in room " + room));
+                    return;
+                }
+                if (files != null) files.offer(client, room, message);
+                break;
+            case FILE_GET:
+                if (files != null) files.get(client, message);
+                break;
+            case FILE_ACK:
+                // chi server gui
+                break;
+            case RESUME:
+                resume(client, message);
+                break;
+            case PING:
+                client.sendMessage(new ChatMessage(ChatMessage.Type.PONG, "Server", null, null));
+                break;
+            case PONG:
+                // chi can cap nhat lastReadNanos
+                break;
+            case NICK:
+                if (!Roster.isValidNick(message.getSender())) {
+                    client.sendMessage(new ChatMessage("Server", "Invalid nickname"));
+                    return;
+                }
+                roster.setNick(client, message.getSender());
+                break;
+            case ROSTER:
+                roster.sendSnapshot(client);
+                break;
+            default:
+                if (message.getRecipient() != null) {
+                    direct(client, message);
+                    return;
+                }
+                if (!rooms.isMember(room, client)) {
+                    client.sendMessage(new ChatMessage("Server", "You are not in room " + room));
+                    return;
+                }
+                broadcast(new ChatMessage(ChatMessage.Type.CHAT, message.getSender(), room, message.getMessage()));
+        }
+    }
+
+    // Tin rieng: tim ket noi cua nguoi nhan qua index nickname cua Roster (khong khoa), ma hoa mot lan
+    // roi chi gui cho cac ket noi do va cac ket noi cua nguoi gui (de hien tin da gui).
+    // Nguoi gui phai co nickname, va sender luon la nickname do. Khong vao log, lich su hay cluster.
+    private void direct(ClientHandler client, ChatMessage message) {
+        String sender = client.nickname;
+        if (sender == null) {
+            client.sendMessage(new ChatMessage("Server", "Set a nickname before sending private messages"));
+            return;
+        }
+        String recipient = message.getRecipient();
+        Set<ClientHandler> targets = roster.connections(recipient);
+        if (targets.isEmpty()) {
+            client.sendMessage(new ChatMessage("Server", "User " + recipient + " is not online"));
+            return;
+        }
+        ChatFrame frame = new ChatFrame(ChatMessage.direct(sender, recipient, message.getMessage()));
+        for (ClientHandler target : targets) {
+            target.send(frame);
+        }
+        if (!recipient.equals(sender)) {
+            for (ClientHandler own : roster.connections(sender)) {
+                own.send(frame);
+            }
+        }
+        metrics.directMessages.increment();
+    }
+
+    // Client ket noi lai gui RESUME "seq cuoi da nhan\nphong\nphong...": vao lai cac phong
+    // (khong bao JOIN, ket noi cu cung roi phong im lang) roi nhan cac message da lo trong mot lan ghi.
+    // Vao phong truoc roi moi lay lich su, nen message phat cung luc co the toi hai lan
+    // (truc tiep va trong ban phat lai) nhung khong bi mat; client bo ban trung theo seq.
+    private void resume(ClientHandler client, ChatMessage message) {
+        String[] lines = String.valueOf(message.getMessage()).split("\n");
+        long from;
+        try {
+            from = Long.parseLong(lines[0].trim());
+        } catch (NumberFormatException e) {
+            client.sendMessage(new ChatMessage("Server", "Invalid resume request"));
+            return;
+        }
+        // client da thay seq lon hon: server khoi dong lai va mat lich su trong bo nho
+        if (from > lastSeq.get()) from = 0;
+        for (int i = 1; i < lines.length; i++) {
+            if (RoomRegistry.isValidName(lines[i])) {
+                rooms.join(lines[i], client);
+            }
+        }
+        List<ChatFrame> missed = null;
+        if (chatLog != null) {
             try {
-                out.writeObject(message);
-                out.flush();
+                missed = missedFromLog(client, from);
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
-        
+        if (missed == null) {
+            missed = missedFromHistory(client, from);
+        }
+        // tra loi truoc ban phat lai: seq server bat dau phat lai (0 neu server da khoi dong lai)
+        List<ChatFrame> replay = new ArrayList<>(missed.size() + 1);
+        replay.add(new ChatFrame(new ChatMessage(ChatMessage.Type.RESUME, "Server", null, String.valueOf(from))));
+        replay.addAll(missed);
+        client.sendAll(replay);
+        ChatFrame.releaseAll(missed);
+    }
+
+    private List<ChatFrame> missedFromLog(ClientHandler client, long from) throws IOException {
+        long end = chatLog.nextOffset();
+        long start = Math.max(Math.max(0, from - RESUME_SLACK), end - RESUME_MAX_SCAN);
+        ArrayDeque<ChatFrame> frames = new ArrayDeque<>();
+        chatLog.replay(start, RESUME_MAX_SCAN, logged -> {
+            if (logged.getSeq() > from && logged.getRoom() != null && client.rooms.contains(logged.getRoom())) {
+                frames.add(new ChatFrame(logged));
+                if (frames.size() > RESUME_MAX_MESSAGES) frames.poll();
+            }
+        });
+        List<ChatFrame> sorted = new ArrayList<>(frames);
+        sorted.sort(Comparator.comparingLong(ChatFrame::seq));
+        return sorted;
+    }
+
+    private List<ChatFrame> missedFromHistory(ClientHandler client, long from) {
+        List<ChatFrame> frames = new ArrayList<>();
+        for (String room : client.rooms) {
+            HistoryRing history = histories.get(room);
+            if (history == null) continue;
+            for (ChatFrame frame : history.snapshot()) {
+                if (frame.seq() > from) {
+                    frames.add(frame);
+                } else {
+                    frame.release();
+                }
+            }
+        }
+        frames.sort(Comparator.comparingLong(ChatFrame::seq));
+        // tra ve frame nao thi nguoi goi release frame do
+        if (frames.size() > RESUME_MAX_MESSAGES) {
+            List<ChatFrame> older = frames.subList(0, frames.size() - RESUME_MAX_MESSAGES);
+            ChatFrame.releaseAll(older);
+            older.clear();
+        }
+        return frames;
+    }
+
+    // Frame du lieu file tu client, xem FileSpool
+    void fileData(ClientHandler client, ByteBuffer payload) throws IOException {
+        if (files != null) files.data(client, payload);
+    }
+
+    // Phan chung cua mot ket noi client, khong phu thuoc vao kieu I/O
+    abstract static class ClientHandler {
+        protected final ChatServer server;
+        protected final OutboundQueue outbound;
+        // codec da thoa thuan, null cho toi khi bat tay xong
+        protected volatile ChatCodec codec;
+        // cac phong client dang o, do RoomRegistry cap nhat
+        final Set<String> rooms = ConcurrentHashMap.newKeySet();
+        // frame tao truoc lan backfill gan nhat la lich su, khong tinh thoi gian trong hang doi
+        private volatile long backfillNanos = System.nanoTime();
+        // ly do dong ket noi dau tien, dung cho event Disconnect
+        private volatile String disconnectReason;
+        // bat dau tu luc accept, ghi khi bat tay xong
+        private ChatEvents.Handshake handshakeEvent = new ChatEvents.Handshake();
+        private final RateLimiter limiter;
+        // upload dang nhan (chi thread doc dung)
+        final Map<Integer, FileSpool.Upload> uploads = new HashMap<>();
+        // file dang cho gui: thread doc them vao, writer lay ra va xen giua cac frame chat
+        protected final Queue<FileSend> fileSends = new ConcurrentLinkedQueue<>();
+        // lan cuoi nhan duoc mot frame, va lan kiem tra heartbeat dang hen
+        volatile long lastReadNanos = System.nanoTime();
+        volatile TimerWheel.Timeout idleCheck;
+        // nickname da dat bang NICK, null neu chua; Roster cap nhat
+        volatile String nickname;
+        // dung lai cho moi frame CHAT binary (chi thread doc dung)
+        private final MessageView view = new MessageView();
+
+        protected ClientHandler(ChatServer server) {
+            this.server = server;
+            this.limiter = server.newClientLimiter();
+            this.outbound = new OutboundQueue(server.outboundCapacity, server.overflowPolicy, server.blockTimeoutMillis,
+                    server.metrics.dropped);
+            handshakeEvent.begin();
+        }
+
+        // Goi ngay sau khi da chon codec
+        protected void handshakeDone() {
+            ChatEvents.Handshake event = handshakeEvent;
+            handshakeEvent = null;
+            event.end();
+            if (event.shouldCommit()) {
+                event.remoteAddress = getRemoteAddress();
+                event.codec = codec.name();
+                event.commit();
+            }
+        }
+
+        protected void setDisconnectReason(String reason) {
+            if (disconnectReason == null) disconnectReason = reason;
+        }
+
+        public String getDisconnectReason() {
+            return disconnectReason == null ? "closed" : disconnectReason;
+        }
+
+        public void close(String reason) {
+            setDisconnectReason(reason);
+            close();
+        }
+
+        public ChatCodec getCodec() {
+            return codec;
+        }
+
+        public int getQueueDepth() {
+            return outbound.size();
+        }
+
+        public long getDroppedMessages() {
+            return outbound.dropped();
+        }
+
+        public void sendMessage(ChatMessage message) {
+            send(new ChatFrame(message));
+        }
+
+        // Chi dua frame vao hang doi; writer cua client se ghi xuong socket
+        public void send(ChatFrame frame) {
+            if (codec == null) return;
+            if (!outbound.offer(frame, canBlockSender())) {
+                slowConsumer();
+                return;
+            }
+            frameQueued();
+        }
+
+        // Nhu send() nhung khong bao gio cho cho trong hang doi, ke ca voi OverflowPolicy.BLOCK:
+        // cho thread dung chung (timing wheel, scheduler) goi. Hang doi day thi coi la client cham.
+        void trySend(ChatFrame frame) {
+            if (codec == null) return;
+            if (!outbound.offer(frame, false)) {
+                slowConsumer();
+                return;
+            }
+            frameQueued();
+        }
+
+        // Dua nhieu frame vao hang doi roi moi bao writer mot lan
+        public void sendAll(List<ChatFrame> frames) {
+            if (codec == null || frames.isEmpty()) return;
+            backfillNanos = System.nanoTime();
+            for (ChatFrame frame : frames) {
+                if (!outbound.offer(frame, canBlockSender())) {
+                    slowConsumer();
+                    return;
+                }
+            }
+            frameQueued();
+        }
+
+        // Thread doc goi cho moi frame nhan duoc (payload la phan sau 4 byte do dai)
+        protected void received(ByteBuffer payload) throws IOException {
+            lastReadNanos = System.nanoTime();
+            if (!admit(payload.remaining())) return;
+            if (FileSpool.isData(codec, payload)) {
+                server.fileData(this, payload);
+            } else if (codec == ChatCodecs.BINARY && server.cluster == null && view.parse(payload)) {
+                // link cluster giu frame lau (cho ack) nen chi dung frame pool khi chay mot node
+                server.relay(this, view);
+            } else {
+                server.messageReceived(this, codec.decode(payload));
+            }
+        }
+
+        // Kiem tra gioi han cua client roi gioi han chung; false neu message bi bo
+        private boolean admit(int size) {
+            RateLimiter.Action action = server.rateLimitAction;
+            boolean delay = action == RateLimiter.Action.DELAY;
+            long wait = limiter == null ? 0 : limiter.acquire(size, delay);
+            boolean global = false;
+            RateLimiter globalLimiter = server.globalLimiter;
+            if (globalLimiter != null && (wait == 0 || delay)) {
+                long globalWait = globalLimiter.acquire(size, delay);
+                global = globalWait > wait;
+                wait = Math.max(wait, globalWait);
+            }
+            if (wait == 0) return true;
+            server.metrics.rateLimited.increment();
+            if (delay) {
+                pauseReading(wait);
+                return true;
+            }
+            if (action == RateLimiter.Action.DISCONNECT && !global) {
+                server.metrics.rateLimitDisconnects.increment();
+                System.out.println("Client " + getRemoteAddress() + " exceeded rate limit, disconnecting");
+                close("rate limit exceeded");
+            }
+            return false;
+        }
+
+        public void sendFile(FileSend file) {
+            if (codec == null) return;
+            fileSends.add(file);
+            outbound.wakeup();
+            frameQueued();
+        }
+
+        // Bo cac file chua gui xong, tra tham chieu toi file trong spool
+        protected void clearFileSends() {
+            FileSend file;
+            while ((file = fileSends.poll()) != null) {
+                file.close();
+            }
+        }
+
+        private void slowConsumer() {
+            server.metrics.slowConsumers.increment();
+            System.out.println("Slow consumer " + getRemoteAddress() + ", disconnecting");
+            close("slow consumer");
+        }
+
+        // Writer goi khi lay mot frame ra khoi hang doi: chep vao batch va tra tham chieu cua hang doi
+        protected void dequeued(ChatFrame frame, WriteBatch batch) throws IOException {
+            long created = frame.createdNanos();
+            if (created - backfillNanos > 0) {
+                server.metrics.queueTime.record(System.nanoTime() - created);
+            }
+            server.metrics.messagesOut.increment();
+            try {
+                batch.add(frame, codec);
+            } finally {
+                frame.release();
+            }
+        }
+
+        // Mot lan gathering write, co dem byte da ghi
+        protected boolean write(WriteBatch batch, GatheringByteChannel channel) throws IOException {
+            long before = batch.bytes();
+            boolean done = batch.write(channel);
+            server.metrics.bytesOut.add(before - batch.bytes());
+            return done;
+        }
+
+        // Ket thuc event SlowWrite da begin() luc lan ghi bat dau bi nghen
+        protected void slowWrite(ChatEvents.SlowWrite event, int frames, long bytes) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.remoteAddress = getRemoteAddress();
+                event.frames = frames;
+                event.bytes = bytes;
+                event.queueDepth = outbound.size();
+                event.commit();
+            }
+        }
+
+        protected boolean canBlockSender() {
+            return true;
+        }
+
+        protected abstract void frameQueued();
+
+        // Ngung doc client trong nanos (goi tren thread doc cua client)
+        protected abstract void pauseReading(long nanos);
+
+        public abstract String getRemoteAddress();
+
+        public abstract void close();
+    }
+
+    private class SocketClientHandler extends ClientHandler implements Runnable {
+        private SocketChannel channel;
+        private Socket socket;
+        private DataOutputStream out;
+        private volatile Future<?> writer;
+
+        public SocketClientHandler(SocketChannel channel, ChatServer server) throws IOException {
+            super(server);
+            this.channel = channel;
+            this.socket = channel.socket();
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        @Override
+        protected void frameQueued() {
+            // writer dang cho trong outbound.take()
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return String.valueOf(socket.getRemoteSocketAddress());
+        }
+
+        // Thread doc cua client chi can ngu, du lieu chua doc nam lai trong buffer TCP
+        @Override
+        protected void pauseReading(long nanos) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(nanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
         public void close() {
             try {
                 socket.close();
             } catch (IOException e) {
                 e.printStackTrace();
             }
+            if (writer != null) {
+                writer.cancel(true);
+            }
+        }
+
+        // Writer rieng cua client, chi thread nay ghi vao channel sau khi bat tay.
+        // Lay het frame dang cho thanh mot lan gathering write. Neu lan ghi truoc moi xay ra
+        // (dang co nhieu message) thi cho them toi da flushDelay de gom, nen do tre van co gioi han.
+        // Dang gui file thi ghi mot khuc sau moi lan ghi chat.
+        private void writeLoop() {
+            WriteBatch batch = new WriteBatch(256);
+            long lastWrite = 0;
+            try {
+                while (!socket.isClosed()) {
+                    ChatFrame first = fileSends.isEmpty() ? outbound.take() : outbound.poll();
+                    if (first != null && first != OutboundQueue.WAKEUP) {
+                        writeChat(batch, first, lastWrite);
+                        lastWrite = System.nanoTime();
+                    }
+                    FileSend file = fileSends.peek();
+                    if (file != null) {
+                        do {
+                            server.metrics.bytesOut.add(file.write(channel));
+                        } while (file.inChunk());
+                        if (file.done()) fileSends.poll();
+                    }
+                }
+            } catch (InterruptedException e) {
+                // client da dong
+            } catch (IOException e) {
+                close("write error: " + e.getMessage());
+            } finally {
+                batch.clear();
+            }
         }
-        
+
+        private void writeChat(WriteBatch batch, ChatFrame first, long lastWrite) throws IOException, InterruptedException {
+            dequeued(first, batch);
+            long deadline = lastWrite + flushDelayNanos;
+            while (!batch.isFull(maxBatchBytes)) {
+                ChatFrame frame = outbound.poll();
+                if (frame == null) {
+                    long wait = deadline - System.nanoTime();
+                    if (wait <= 0 || (frame = outbound.poll(wait)) == null) break;
+                }
+                dequeued(frame, batch);
+            }
+            ChatEvents.SlowWrite slow = new ChatEvents.SlowWrite();
+            slow.begin();
+            int frames = batch.frames();
+            long bytes = batch.bytes();
+            while (!write(batch, channel)) {
+                // channel blocking, thuong ghi het trong mot lan
+            }
+            slowWrite(slow, frames, bytes);
+        }
+
         @Override
         public void run() {
-            try (ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
-                out = new ObjectOutputStream(socket.getOutputStream());
-                
-                
-                broadcast(new ChatMessage("Server", "Someone has connected."));
-                while (server.running) {
-                    ChatMessage message = (ChatMessage) in.readObject();
-                    server.broadcast(message);
-                }
-            } catch (IOException | ClassNotFoundException e) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(server.metrics.countingInput(socket.getInputStream())))) {
+                byte[] offered = ChatCodecs.readHello(in);
+                codec = ChatCodecs.serverHandshake(offered, out, server.codecs);
+                handshakeDone();
+                writer = executor.submit(this::writeLoop);
+                if (socket.isClosed()) writer.cancel(true);
+                server.clientConnected(this, ChatCodecs.resuming(offered));
+                // dung lai cho moi frame: received() khong giu payload sau khi tra ve
+                ByteBuffer payload = ByteBuffer.allocate(8192);
+                while (server.running && !socket.isClosed()) {
+                    int length = in.readInt();
+                    ChatCodecs.checkLength(length);
+                    if (length > payload.capacity()) {
+                        payload = ByteBuffer.allocate(length);
+                    }
+                    in.readFully(payload.array(), 0, length);
+                    received(payload.clear().limit(length));
+                }
+            } catch (EOFException e) {
+                setDisconnectReason(codec == null ? "closed during handshake" : "closed by client");
+            } catch (IOException e) {
                 //e.printStackTrace();
+                setDisconnectReason((codec == null ? "handshake error: " : "read error: ") + e.getMessage());
             } finally {
-                server.clients.remove(this);
-                server.connectedClients--; 
-                System.out.println("Client disconnected. Total clients: " + server.connectedClients);
+                server.clientDisconnected(this);
                 close();
+                outbound.clear();
+                clearFileSends();
             }
         }
     }
@@ -149,65 +1141,676 @@ interface ServerChatListener {
 }
 
 class ChatClient {
+    // Mot message da ma hoa dang cho writer, future xong khi da ghi xuong socket
+    private static final class PendingSend {
+        final ByteBuffer frame;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        PendingSend(ByteBuffer frame) {
+            this.frame = frame;
+        }
+    }
+
+    // File dang gui len: chi gui truoc toi da FileSpool.WINDOW khuc chua duoc server ack
+    private static final class FileUpload {
+        final long size;
+        final Semaphore window = new Semaphore(FileSpool.WINDOW);
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        FileUpload(long size) {
+            this.size = size;
+        }
+    }
+
+    // File dang tai ve, chi thread doc ghi vao
+    private static final class FileDownload {
+        final Path target;
+        final FileChannel channel;
+        final CompletableFuture<Path> future = new CompletableFuture<>();
+        long size = -1;
+        long received;
+
+        FileDownload(Path target, FileChannel channel) {
+            this.target = target;
+            this.channel = channel;
+        }
+    }
+
+    static final long RECONNECT_MIN_MILLIS = 250;
+    static final long RECONNECT_MAX_MILLIS = 30_000;
+
     private String host;
     private int port;
     private ChatListener listener;
-    private ObjectOutputStream out;
-    Socket socket;
+    private volatile SocketChannel channel;
     private volatile boolean running = true;
-    
+    private volatile boolean autoReconnect = true;
+    // seq broadcast lon nhat da nhan, va vong cac seq vua nhan de bo ban trung khi phat lai
+    // (chi thread doc dung)
+    private volatile long lastSeq;
+    private final long[] recentSeqs = new long[4096];
+    // seq da gui trong RESUME gan nhat
+    private volatile long resumedFrom;
+    // keepalive: server im lang keepAliveNanos thi gui PING, readTimeoutNanos thi coi nhu mat ket noi
+    private long keepAliveNanos = TimeUnit.SECONDS.toNanos(30);
+    private long readTimeoutNanos = TimeUnit.SECONDS.toNanos(90);
+    private volatile long lastReadNanos;
+    private volatile TimerWheel.Timeout keepAlive;
+    private volatile String nickname;
+    // nguoi dang online theo ROSTER cua server; version -1 khi chua co snapshot (chi thread doc sua)
+    private final Set<String> roster = new ConcurrentSkipListSet<>();
+    private long rosterVersion = -1;
+    // cac phong da vao ngoai phong mac dinh, vao lai khi ket noi lai
+    private final Set<String> joinedRooms = ConcurrentHashMap.newKeySet();
+    private final ExecutorService executor;
+    private List<ChatCodec> offeredCodecs = ChatCodecs.ALL;
+    private volatile ChatCodec codec;
+    private int maxBatchBytes = 8192;
+    private long flushDelayNanos = TimeUnit.MILLISECONDS.toNanos(1);
+    private BlockingQueue<PendingSend> outbound = new ArrayBlockingQueue<>(1024);
+    private Future<?> writer;
+    private final AtomicInteger nextTransfer = new AtomicInteger();
+    private final ConcurrentHashMap<Integer, FileUpload> uploads = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, FileDownload> downloads = new ConcurrentHashMap<>();
+
     public ChatClient(String host, int port, ChatListener listener) {
+        this(host, port, listener, ChatExecutors.shared());
+    }
+
+    public ChatClient(String host, int port, ChatListener listener, ExecutorService executor) {
         this.host = host;
         this.port = port;
         this.listener = listener;
+        this.executor = executor;
+    }
+
+    // Codec de nghi voi server, theo thu tu uu tien. Goi truoc connect().
+    public void setCodecs(ChatCodec... codecs) {
+        this.offeredCodecs = List.of(codecs);
+    }
+
+    public ChatCodec getCodec() {
+        return codec;
+    }
+
+    // Message gui lien tiep duoc gom thanh mot lan ghi toi da maxBatchBytes; neu vua moi ghi
+    // thi writer cho them toi da flushDelayMicros de gom. Goi truoc connect().
+    public void setWriteBatching(int maxBatchBytes, long flushDelayMicros) {
+        if (maxBatchBytes < 1 || flushDelayMicros < 0) {
+            throw new IllegalArgumentException("Invalid write batching settings");
+        }
+        this.maxBatchBytes = maxBatchBytes;
+        this.flushDelayNanos = TimeUnit.MICROSECONDS.toNanos(flushDelayMicros);
+    }
+
+    // So message toi da dang cho gui; khi day sendAsync() tra ve future loi ngay. Goi truoc connect().
+    public void setSendQueue(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be >= 1");
+        }
+        this.outbound = new ArrayBlockingQueue<>(capacity);
+    }
+
+    // So message dang cho writer, de nguoi goi tu giam toc do
+    public int getQueuedMessages() {
+        return outbound.size();
+    }
+
+    public boolean isSendQueueFull() {
+        return outbound.remainingCapacity() == 0;
+    }
+
+    // Mat ket noi sau khi da ket noi thanh cong thi tu ket noi lai (cho tang dan toi
+    // RECONNECT_MAX_MILLIS) va xin server phat lai cac message da lo. Mac dinh bat.
+    public void setAutoReconnect(boolean autoReconnect) {
+        this.autoReconnect = autoReconnect;
+    }
+
+    // Khong nhan gi tu server trong intervalMillis thi gui PING; trong timeoutMillis thi dong
+    // ket noi (va ket noi lai neu bat autoReconnect). 0 de tat tung phan. Mac dinh 30 s / 90 s.
+    // Goi truoc connect().
+    public void setKeepAlive(long intervalMillis, long timeoutMillis) {
+        if (intervalMillis < 0 || timeoutMillis < 0
+                || (intervalMillis > 0 && timeoutMillis > 0 && intervalMillis >= timeoutMillis)) {
+            throw new IllegalArgumentException("Invalid keepalive settings");
+        }
+        this.keepAliveNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.readTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    // Dat hoac doi nickname: vao roster cua server va nhan danh sach nguoi online
+    // (message ROSTER qua listener, danh sach hien tai qua getRoster()). Ket noi lai thi tu gui lai.
+    public void setNickname(String nickname) {
+        this.nickname = nickname;
+        if (codec != null && running) {
+            send(new ChatMessage(ChatMessage.Type.NICK, nickname, null, null));
+        }
+    }
+
+    // Tin rieng cho nickname recipient; can setNickname() truoc. Server gui ban sao ve cho nguoi gui,
+    // va tra loi "User ... is not online" neu khong tim thay nguoi nhan.
+    public CompletableFuture<Void> sendDirectAsync(String recipient, String message) {
+        String sender = nickname;
+        if (sender == null) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Nickname not set"));
+        }
+        return sendAsync(ChatMessage.direct(sender, recipient, message));
     }
-    
+
+    // Nguoi dang online theo thu tu ten
+    public List<String> getRoster() {
+        return new ArrayList<>(roster);
+    }
+
+    // Seq broadcast lon nhat da nhan
+    public long getLastSeq() {
+        return lastSeq;
+    }
+
+    // Ket noi va bat tay; sau do mot task doc va mot task ghi chay tren executor
     public void connect() {
         try {
-            socket = new Socket(host, port);
-            out = new ObjectOutputStream(socket.getOutputStream());
-            ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-            
-            new Thread(() -> {
-                try {
-                    while (running) {
-                        ChatMessage message = (ChatMessage) in.readObject();
-                        listener.onMessageReceived(message);
+            open(null);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // resume != null: ghi RESUME ngay sau bat tay, truoc moi message dang cho trong hang doi
+    private void open(ChatMessage resume) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+        try {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            // luong khong buffer: chi doc dung so byte cua loi chao
+            DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel));
+            ChatCodec chosen = ChatCodecs.clientHandshake(new DataInputStream(Channels.newInputStream(channel)), out,
+                    offeredCodecs, resume != null);
+            if (resume != null) {
+                ChatCodecs.write(out, chosen, resume);
+            }
+            if (nickname != null) {
+                ChatCodecs.write(out, chosen, new ChatMessage(ChatMessage.Type.NICK, nickname, null, null));
+            }
+            out.flush();
+            this.channel = channel;
+            codec = chosen;
+            lastReadNanos = System.nanoTime();
+            writer = executor.submit(() -> writeLoop(channel));
+            executor.execute(() -> readLoop(channel));
+            if (keepAliveNanos > 0 || readTimeoutNanos > 0) {
+                keepAlive(channel);
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // Chay tren timing wheel dung chung, mot timeout cho moi ket noi giong idleCheck cua server
+    private void keepAlive(SocketChannel channel) {
+        if (!running || channel != this.channel || !channel.isOpen()) return;
+        long idle = System.nanoTime() - lastReadNanos;
+        if (readTimeoutNanos > 0 && idle >= readTimeoutNanos) {
+            System.out.println("No data from server for " + TimeUnit.NANOSECONDS.toMillis(idle) + " ms, closing connection");
+            try {
+                // reader thay channel dong va xu ly nhu mat ket noi
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+        long next;
+        if (keepAliveNanos > 0 && idle >= keepAliveNanos) {
+            sendAsync(new ChatMessage(ChatMessage.Type.PING, null, null, null));
+            next = readTimeoutNanos > 0 ? readTimeoutNanos - idle : keepAliveNanos;
+        } else {
+            next = (keepAliveNanos > 0 ? keepAliveNanos : readTimeoutNanos) - idle;
+        }
+        keepAlive = ChatExecutors.timerWheel().schedule(() -> keepAlive(channel), next, TimeUnit.NANOSECONDS);
+    }
+
+    private void connectionLost(SocketChannel lost) {
+        try {
+            lost.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        Future<?> lostWriter = writer;
+        if (lostWriter != null) {
+            lostWriter.cancel(true);
+        }
+        failTransfers(new ClosedChannelException());
+        if (!autoReconnect) {
+            disconnect();
+            return;
+        }
+        System.out.println("Connection lost, reconnecting...");
+        listener.onMessageReceived(new ChatMessage("Client", "Mat ket noi, dang ket noi lai..."));
+        scheduleReconnect(0);
+    }
+
+    // Cho gap doi moi lan that bai, co jitter de nhieu client khong cung noi lai mot luc
+    private void scheduleReconnect(int attempt) {
+        long delay = Math.min(RECONNECT_MAX_MILLIS, RECONNECT_MIN_MILLIS << Math.min(attempt, 10));
+        delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        ChatExecutors.scheduler().schedule(() -> executor.execute(() -> reconnect(attempt)), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void reconnect(int attempt) {
+        if (!running) return;
+        resumedFrom = lastSeq;
+        // ban phat lai chi gom seq > resumedFrom, khong trung voi phien cu; seq cu con lai chi
+        // lam bo nham frame cua server vua khoi dong lai (seq bat dau lai tu dau)
+        Arrays.fill(recentSeqs, 0);
+        StringBuilder body = new StringBuilder().append(resumedFrom);
+        for (String room : joinedRooms) {
+            body.append('\n').append(room);
+        }
+        try {
+            open(new ChatMessage(ChatMessage.Type.RESUME, null, null, body.toString()));
+        } catch (IOException e) {
+            scheduleReconnect(attempt + 1);
+            return;
+        }
+        if (!running) {
+            disconnect();
+            return;
+        }
+        System.out.println("Reconnected to " + host + ":" + port);
+        listener.onMessageReceived(new ChatMessage("Client", "Da ket noi lai"));
+    }
+
+    private void readLoop(SocketChannel channel) {
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        try {
+            while (running && channel.read(buffer) >= 0) {
+                lastReadNanos = System.nanoTime();
+                buffer.flip();
+                while (buffer.remaining() >= 4) {
+                    int length = buffer.getInt(buffer.position());
+                    ChatCodecs.checkLength(length);
+                    if (buffer.remaining() < 4 + length) break;
+                    int start = buffer.position() + 4;
+                    ByteBuffer payload = buffer.slice(start, length);
+                    buffer.position(start + length);
+                    received(payload);
+                }
+                if (buffer.remaining() >= 4 && 4 + buffer.getInt(buffer.position()) > buffer.capacity()) {
+                    buffer = ByteBuffer.allocate(4 + buffer.getInt(buffer.position())).put(buffer);
+                } else {
+                    buffer.compact();
+                }
+            }
+        } catch (ClosedChannelException e) {
+
+        } catch (IOException e) {
+            if (running) System.out.println("Connection error: " + e.getMessage());
+        } finally {
+            if (running) connectionLost(channel);
+        }
+    }
+
+    private void received(ByteBuffer payload) throws IOException {
+        if (FileSpool.isData(codec, payload)) {
+            fileData(payload);
+            return;
+        }
+        ChatMessage message = codec.decode(payload);
+        long seq = message.getSeq();
+        if (seq != 0) {
+            if (seq > lastSeq) lastSeq = seq;
+            int slot = (int) (seq & (recentSeqs.length - 1));
+            // da nhan roi: ban phat lai trung voi ban phat truc tiep
+            if (recentSeqs[slot] == seq) return;
+            recentSeqs[slot] = seq;
+        }
+        switch (message.getType()) {
+            case RESUME:
+                // server phat lai tu seq nay; nho hon seq da xin nghia la server da khoi dong lai
+                long from = Long.parseLong(message.getMessage().trim());
+                // frame phat truc tiep da nhan trong phien nay van giu trong recentSeqs de loc ban phat lai
+                if (from < resumedFrom) {
+                    lastSeq = from;
+                }
+                break;
+            case PING:
+                sendAsync(new ChatMessage(ChatMessage.Type.PONG, null, null, null));
+                break;
+            case PONG:
+                break;
+            case ROSTER:
+                if (applyRoster(message.getMessage())) {
+                    listener.onMessageReceived(message);
+                }
+                break;
+            case FILE_ACK:
+                fileAck(message);
+                break;
+            case FILE_GET:
+                downloadStarted(message);
+                break;
+            default:
+                listener.onMessageReceived(message);
+        }
+    }
+
+    // Snapshot "S version" (tiep theo "s version") hoac delta "D version"; false neu bo qua.
+    // Delta khong noi tiep version dang co thi xin snapshot moi.
+    private boolean applyRoster(String body) {
+        String[] lines = body.split("\n");
+        char kind = lines[0].charAt(0);
+        long version = Long.parseLong(lines[0].substring(2).trim());
+        if (kind == 'S') {
+            roster.clear();
+        } else if (kind == 's') {
+            if (version != rosterVersion) return false;
+        } else if (rosterVersion < 0) {
+            return false;
+        } else if (version != rosterVersion + 1) {
+            rosterVersion = -1;
+            send(new ChatMessage(ChatMessage.Type.ROSTER, null, null, null));
+            return false;
+        }
+        rosterVersion = version;
+        for (int i = 1; i < lines.length; i++) {
+            String line = lines[i];
+            if (kind != 'D') {
+                roster.add(line);
+            } else if (line.charAt(0) == '+') {
+                roster.add(line.substring(1));
+            } else if (line.charAt(0) == '-') {
+                roster.remove(line.substring(1));
+            } else if (line.charAt(0) == '~') {
+                int tab = line.indexOf('\t');
+                roster.remove(line.substring(1, tab));
+                roster.add(line.substring(tab + 1));
+            }
+        }
+        return true;
+    }
+
+    // FILE_ACK "id so-byte-da-nhan" hoac "id -1 ly do"
+    private void fileAck(ChatMessage message) {
+        String[] parts = message.getMessage().split(" ", 3);
+        FileUpload upload = uploads.get(Integer.parseInt(parts[0]));
+        if (upload == null) return;
+        long received = Long.parseLong(parts[1]);
+        if (received < 0) {
+            upload.future.completeExceptionally(new IOException(parts.length > 2 ? parts[2] : "File rejected"));
+        } else if (received == upload.size) {
+            upload.future.complete(null);
+        } else {
+            upload.window.release();
+        }
+    }
+
+    // Tra loi FILE_GET: "id size ten" hoac "id -1 ly do"
+    private void downloadStarted(ChatMessage message) {
+        String[] parts = message.getMessage().split(" ", 3);
+        FileDownload download = downloads.get(Integer.parseInt(parts[0]));
+        if (download == null) return;
+        download.size = Long.parseLong(parts[1]);
+        if (download.size < 0) {
+            download.future.completeExceptionally(new IOException(parts.length > 2 ? parts[2] : "No such file"));
+        } else if (download.size == 0) {
+            download.future.complete(download.target);
+        }
+    }
+
+    private void fileData(ByteBuffer payload) throws IOException {
+        ByteBuffer in = payload.duplicate();
+        in.get();
+        FileDownload download = downloads.get(in.getInt());
+        long offset = in.getLong();
+        if (download == null || download.future.isDone()) return;
+        try {
+            while (in.hasRemaining()) {
+                offset += download.channel.write(in, offset);
+            }
+        } catch (IOException e) {
+            download.future.completeExceptionally(e);
+            return;
+        }
+        download.received = offset;
+        if (download.received == download.size) {
+            download.future.complete(download.target);
+        }
+    }
+
+    // Writer rieng: lay het message dang cho thanh mot lan gathering write, roi hoan thanh
+    // future cua chung. Nguoi goi khong bao gio cho I/O.
+    private void writeLoop(SocketChannel channel) {
+        WriteBatch batch = new WriteBatch(256);
+        List<PendingSend> inFlight = new ArrayList<>();
+        long lastWrite = 0;
+        try {
+            while (running) {
+                PendingSend first = outbound.take();
+                inFlight.add(first);
+                batch.add(first.frame);
+                long deadline = lastWrite + flushDelayNanos;
+                while (!batch.isFull(maxBatchBytes)) {
+                    PendingSend next = outbound.poll();
+                    if (next == null) {
+                        long wait = deadline - System.nanoTime();
+                        if (wait <= 0 || (next = outbound.poll(wait, TimeUnit.NANOSECONDS)) == null) break;
                     }
-                } catch (EOFException | SocketException e) {
-                    
-                } catch (IOException | ClassNotFoundException e) {
-                    if (running) e.printStackTrace();
-                } finally {
-                    if (running) disconnect(); 
+                    inFlight.add(next);
+                    batch.add(next.frame);
                 }
-            }).start();
+                while (!batch.write(channel)) {
+                    // channel blocking, thuong ghi het trong mot lan
+                }
+                lastWrite = System.nanoTime();
+                for (PendingSend sent : inFlight) {
+                    sent.future.complete(null);
+                }
+                inFlight.clear();
+            }
+        } catch (InterruptedException e) {
+            // disconnect() hoac mat ket noi
         } catch (IOException e) {
-            e.printStackTrace();           
+            // reader se thay channel dong va ket noi lai
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        } finally {
+            IOException closed = new ClosedChannelException();
+            for (PendingSend sent : inFlight) {
+                sent.future.completeExceptionally(closed);
+            }
+            batch.clear();
+            // dang ket noi lai thi giu cac message chua gui cho ket noi moi
+            if (!running) failQueued(closed);
+        }
+    }
+
+    private void failTransfers(Throwable cause) {
+        for (FileUpload upload : uploads.values()) {
+            upload.future.completeExceptionally(cause);
+        }
+        for (FileDownload download : downloads.values()) {
+            download.future.completeExceptionally(cause);
         }
     }
+
+    private void failQueued(Throwable cause) {
+        PendingSend pending;
+        while ((pending = outbound.poll()) != null) {
+            pending.future.completeExceptionally(cause);
+        }
+    }
+
     //ham ngat ket noi
-    public void disconnect() {        
-        running = false; 
+    public void disconnect() {
+        running = false;
+        TimerWheel.Timeout timeout = keepAlive;
+        if (timeout != null) {
+            timeout.cancel();
+        }
         try {
-            if (out != null) {
-                out.close();
+            if (writer != null) {
+                writer.cancel(true);
             }
-            if (socket != null && !socket.isClosed()) {
-                socket.close();
+            if (channel != null && channel.isOpen()) {
+                channel.close();
             }
+            failQueued(new ClosedChannelException());
+            failTransfers(new ClosedChannelException());
             System.out.println("Client disconnected from server.");
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
-    
-    public void sendMessage(String sender, String message) {
+
+    // Dua message vao hang doi gui va tra ve ngay. Future xong khi message da ghi xuong socket;
+    // loi ngay voi RejectedExecutionException neu hang doi day (backpressure),
+    // hoac ClosedChannelException neu chua ket noi / da ngat.
+    public CompletableFuture<Void> sendAsync(ChatMessage message) {
+        ChatCodec current = codec;
+        if (current == null || !running) {
+            return CompletableFuture.failedFuture(new ClosedChannelException());
+        }
+        PendingSend pending;
         try {
-            out.writeObject(new ChatMessage(sender, message));
-            out.flush();
+            pending = new PendingSend(current.encode(message));
         } catch (IOException e) {
-            e.printStackTrace();
+            return CompletableFuture.failedFuture(e);
         }
+        if (!outbound.offer(pending)) {
+            return CompletableFuture.failedFuture(new RejectedExecutionException("Send queue full"));
+        }
+        if (!running) {
+            failQueued(new ClosedChannelException());
+        }
+        return pending.future;
+    }
+
+    public CompletableFuture<Void> sendMessageAsync(String sender, String message) {
+        return sendAsync(new ChatMessage(sender, message));
+    }
+
+    public CompletableFuture<Void> sendMessageAsync(String sender, String room, String message) {
+        return sendAsync(new ChatMessage(sender, room, message));
+    }
+
+    // Gui file vao phong (null: phong mac dinh). File duoc chia khuc va gui tren executor;
+    // future xong khi server da nhan du. Can codec binary.
+    public CompletableFuture<Void> sendFile(String sender, String room, Path file) {
+        if (codec != ChatCodecs.BINARY) {
+            return CompletableFuture.failedFuture(new IOException("File transfer needs the binary codec"));
+        }
+        long size;
+        try {
+            size = Files.size(file);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        int id = nextTransfer.incrementAndGet();
+        FileUpload upload = new FileUpload(size);
+        uploads.put(id, upload);
+        upload.future.whenComplete((ignored, error) -> uploads.remove(id));
+        String target = room == null ? RoomRegistry.DEFAULT_ROOM : room;
+        sendAsync(new ChatMessage(ChatMessage.Type.FILE, sender, target, id + " " + size + " " + file.getFileName()))
+                .whenComplete((ignored, error) -> {
+                    if (error != null) upload.future.completeExceptionally(error);
+                });
+        if (size > 0) {
+            executor.execute(() -> upload(id, upload, file));
+        }
+        return upload.future;
+    }
+
+    // Doc tung khuc vao hang doi gui; khuc file cung di qua writer nen xen ke voi message chat
+    private void upload(int id, FileUpload upload, Path file) {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            for (long offset = 0; offset < upload.size && !upload.future.isDone(); ) {
+                if (!upload.window.tryAcquire(30, TimeUnit.SECONDS)) {
+                    throw new IOException("File transfer timed out");
+                }
+                int length = (int) Math.min(FileSpool.CHUNK_SIZE, upload.size - offset);
+                ByteBuffer frame = ByteBuffer.allocate(4 + 13 + length).put(FileSpool.dataHeader(id, offset, length));
+                while (frame.hasRemaining()) {
+                    if (in.read(frame, offset + frame.position() - 17) < 0) {
+                        throw new EOFException("File changed while sending");
+                    }
+                }
+                PendingSend pending = new PendingSend(frame.flip());
+                while (!outbound.offer(pending, 100, TimeUnit.MILLISECONDS)) {
+                    if (!running) throw new ClosedChannelException();
+                }
+                offset += length;
+            }
+        } catch (IOException e) {
+            upload.future.completeExceptionally(e);
+        } catch (InterruptedException e) {
+            upload.future.completeExceptionally(e);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Tai file da duoc bao trong phong (FILE "fileId size ten") ve target
+    public CompletableFuture<Path> downloadFile(int fileId, Path target) {
+        if (codec != ChatCodecs.BINARY) {
+            return CompletableFuture.failedFuture(new IOException("File transfer needs the binary codec"));
+        }
+        FileDownload download;
+        try {
+            download = new FileDownload(target, FileChannel.open(target, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        if (downloads.putIfAbsent(fileId, download) != null) {
+            try {
+                download.channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return CompletableFuture.failedFuture(new IllegalStateException("Already downloading file " + fileId));
+        }
+        download.future.whenComplete((path, error) -> {
+            downloads.remove(fileId, download);
+            try {
+                download.channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        sendAsync(new ChatMessage(ChatMessage.Type.FILE_GET, null, null, String.valueOf(fileId)))
+                .whenComplete((ignored, error) -> {
+                    if (error != null) download.future.completeExceptionally(error);
+                });
+        return download.future;
+    }
+
+    // Cac ham gui cu: khong chan nguoi goi, chi in loi neu gui khong duoc
+    public void sendMessage(String sender, String message) {
+        send(new ChatMessage(sender, message));
+    }
+
+    // Gui vao mot phong da tham gia
+    public void sendMessage(String sender, String room, String message) {
+        send(new ChatMessage(sender, room, message));
+    }
+
+    public void joinRoom(String sender, String room) {
+        joinedRooms.add(room);
+        send(new ChatMessage(ChatMessage.Type.JOIN, sender, room, null));
+    }
+
+    public void leaveRoom(String sender, String room) {
+        joinedRooms.remove(room);
+        send(new ChatMessage(ChatMessage.Type.LEAVE, sender, room, null));
+    }
+
+    private void send(ChatMessage chatMessage) {
+        sendAsync(chatMessage).whenComplete((ignored, error) -> {
+            if (error != null && running) {
+                System.out.println("Send failed: " + error);
+            }
+        });
     }
 }
@@ -0,0 +1,404 @@
+package DoQuang;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.*;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+// Lich su chat ghi noi tiep (append-only) vao cac segment co kich thuoc co dinh.
+// Segment dang ghi duoc map bang MappedByteBuffer: append chi la mot lan copy bo nho,
+// fsync (force) chay tren thread rieng theo so message hoac theo chu ky.
+//
+// File: <offset dau>.log va <offset dau>.index trong thu muc log.
+// Ban ghi:  [do dai payload int][crc32c int][thoi gian long][payload codec nhi phan]
+// Index:    cu moi INDEX_INTERVAL byte log them [offset tuong doi int][vi tri int]
+final class ChatLog implements Closeable {
+    static final int RECORD_HEADER = 16;
+    static final int INDEX_INTERVAL = 4096;
+    private static final String LOG_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".index";
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final int fsyncEveryMessages;
+    private final Lock lock = new ReentrantLock();
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final ScheduledFuture<?> flusher;
+    // ghi trong khoa append, sync() tren scheduler doc khong can khoa
+    private volatile Segment active;
+    private volatile long nextOffset;
+    private int unsynced;
+    private volatile boolean closed;
+
+    // segmentBytes: kich thuoc moi segment, maxSegments: so segment giu lai (segment cu nhat bi xoa),
+    // fsyncEveryMessages/fsyncIntervalMillis: force xuong dia sau bay nhieu message hoac bay nhieu ms
+    ChatLog(Path dir, int segmentBytes, int maxSegments, int fsyncEveryMessages, long fsyncIntervalMillis) throws IOException {
+        if (segmentBytes < 1024 || maxSegments < 1 || fsyncEveryMessages < 1) {
+            throw new IllegalArgumentException("Invalid chat log settings");
+        }
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = maxSegments;
+        this.fsyncEveryMessages = fsyncEveryMessages;
+        Files.createDirectories(dir);
+        recover();
+        this.flusher = ChatExecutors.scheduler().scheduleWithFixedDelay(
+                this::sync, fsyncIntervalMillis, fsyncIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    ChatLog(Path dir) throws IOException {
+        this(dir, 16 * 1024 * 1024, 64, 256, 200);
+    }
+
+    // Ghi frame vao cuoi log, tra ve offset cua message
+    long append(ChatFrame frame) throws IOException {
+        ByteBuffer encoded = frame.view(ChatCodecs.BINARY);
+        encoded.position(encoded.position() + 4);
+        int length = encoded.remaining();
+        if (RECORD_HEADER + length > segmentBytes) {
+            throw new IOException("Message larger than a log segment");
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(encoded.duplicate());
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IOException("Chat log is closed");
+            }
+            if (!active.hasRoom(RECORD_HEADER + length)) {
+                roll();
+            }
+            long offset = nextOffset;
+            active.append(offset, (int) crc.getValue(), System.currentTimeMillis(), encoded);
+            nextOffset = offset + 1;
+            if (++unsynced >= fsyncEveryMessages) {
+                unsynced = 0;
+                ChatExecutors.scheduler().execute(this::sync);
+            }
+            return offset;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long firstOffset() {
+        Map.Entry<Long, Segment> first = segments.firstEntry();
+        return first == null ? nextOffset : first.getKey();
+    }
+
+    long nextOffset() {
+        return nextOffset;
+    }
+
+    // Doc lai toi da max message bat dau tu offset from (offset da bi xoa theo retention thi bo qua)
+    int replay(long from, int max, Consumer<ChatMessage> consumer) throws IOException {
+        return replayRecords(from, max, (offset, timestamp, payload) -> consumer.accept(ChatCodecs.BINARY.decode(payload)));
+    }
+
+    interface RecordConsumer {
+        void accept(long offset, long timestamp, ByteBuffer payload) throws IOException;
+    }
+
+    int replayRecords(long from, int max, RecordConsumer consumer) throws IOException {
+        long end = nextOffset;
+        long offset = Math.max(from, firstOffset());
+        int count = 0;
+        while (count < max && offset < end) {
+            Map.Entry<Long, Segment> entry = segments.floorEntry(offset);
+            if (entry == null) break;
+            Segment segment = entry.getValue();
+            int read = 0;
+            // segment vua bi xoa theo retention thi doc tiep segment sau
+            if (segment.acquire()) {
+                try {
+                    read = segment.read(offset, end, max - count, consumer);
+                } finally {
+                    segment.release();
+                }
+            }
+            if (read == 0) {
+                Long next = segments.higherKey(entry.getKey());
+                if (next == null || next <= offset) break;
+                offset = next;
+                continue;
+            }
+            count += read;
+            offset += read;
+        }
+        return count;
+    }
+
+    void sync() {
+        Segment segment = active;
+        if (segment != null && !closed) {
+            segment.force();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) return;
+            closed = true;
+            flusher.cancel(false);
+            active.force();
+            for (Segment segment : segments.values()) {
+                segment.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void roll() throws IOException {
+        Segment old = active;
+        active = Segment.create(dir, nextOffset, segmentBytes);
+        segments.put(active.baseOffset, active);
+        // msync segment cu tren scheduler, khong giu khoa append
+        ChatExecutors.scheduler().execute(old.seal());
+        while (segments.size() > maxSegments) {
+            Map.Entry<Long, Segment> oldest = segments.pollFirstEntry();
+            oldest.getValue().delete();
+        }
+    }
+
+    private void recover() throws IOException {
+        List<Long> bases = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + LOG_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    bases.add(Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // khong phai segment
+                }
+            }
+        }
+        Collections.sort(bases);
+        for (int i = 0; i < bases.size(); i++) {
+            boolean last = i == bases.size() - 1;
+            Segment segment = Segment.open(dir, bases.get(i), segmentBytes, last);
+            segments.put(segment.baseOffset, segment);
+        }
+        if (segments.isEmpty()) {
+            active = Segment.create(dir, 0, segmentBytes);
+            segments.put(0L, active);
+        } else {
+            active = segments.lastEntry().getValue();
+        }
+        nextOffset = active.baseOffset + active.count;
+    }
+
+    // Mot segment: file log va file index. Chi segment dang ghi duoc map de ghi.
+    // Dem tham chieu: ChatLog giu mot toi khi close()/delete(), moi lan doc giu mot; tham chieu
+    // cuoi cung dong channel (va xoa file neu da delete()), nen xoa segment khong cat ngang nguoi doc.
+    private static final class Segment {
+        final long baseOffset;
+        final Path logFile;
+        final Path indexFile;
+        final FileChannel channel;
+        // null sau seal(); force() doc tu scheduler
+        volatile MappedByteBuffer log;
+        final MappedByteBuffer index;
+        volatile int position;
+        volatile int count;
+        int indexEntries;
+        int lastIndexedPosition = -INDEX_INTERVAL;
+        private final AtomicInteger refs = new AtomicInteger(1);
+        private volatile boolean deleted;
+
+        private Segment(Path dir, long baseOffset, int segmentBytes, boolean writable) throws IOException {
+            this.baseOffset = baseOffset;
+            this.logFile = dir.resolve(String.format("%020d", baseOffset) + LOG_SUFFIX);
+            this.indexFile = dir.resolve(String.format("%020d", baseOffset) + INDEX_SUFFIX);
+            this.channel = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            int indexBytes = (segmentBytes / INDEX_INTERVAL + 1) * 8;
+            if (writable) {
+                log = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+            }
+            try (FileChannel indexChannel = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                index = indexChannel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0,
+                        writable ? indexBytes : Math.min(indexBytes, indexChannel.size()));
+            }
+        }
+
+        static Segment create(Path dir, long baseOffset, int segmentBytes) throws IOException {
+            return new Segment(dir, baseOffset, segmentBytes, true);
+        }
+
+        // Segment cu chi doc; segment cuoi duoc quet lai tu muc index cuoi de tim diem ket thuc
+        static Segment open(Path dir, long baseOffset, int segmentBytes, boolean writable) throws IOException {
+            Segment segment = new Segment(dir, baseOffset, segmentBytes, writable);
+            segment.recover();
+            return segment;
+        }
+
+        boolean hasRoom(int recordBytes) {
+            MappedByteBuffer buffer = log;
+            return buffer != null && position + recordBytes <= buffer.capacity();
+        }
+
+        void append(long offset, int crc, long timestamp, ByteBuffer payload) {
+            MappedByteBuffer log = this.log;
+            int start = position;
+            int length = payload.remaining();
+            log.putInt(start + 4, crc);
+            log.putLong(start + 8, timestamp);
+            log.put(start + RECORD_HEADER, payload, payload.position(), length);
+            // do dai ghi sau cung: ban ghi chi hop le khi da ghi du
+            log.putInt(start, length);
+            if (start - lastIndexedPosition >= INDEX_INTERVAL && (indexEntries + 1) * 8 <= index.capacity()) {
+                index.putInt(indexEntries * 8, (int) (offset - baseOffset));
+                index.putInt(indexEntries * 8 + 4, start);
+                indexEntries++;
+                lastIndexedPosition = start;
+            }
+            position = start + RECORD_HEADER + length;
+            count++;
+        }
+
+        // Doc ban ghi tu offset toi truoc end, toi da max ban ghi
+        int read(long from, long end, int max, RecordConsumer consumer) throws IOException {
+            int target = (int) (from - baseOffset);
+            if (target >= count) return 0;
+            int[] start = lookup(target);
+            int relative = start[0];
+            int pos = start[1];
+            int limit = position;
+            int read = 0;
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+            while (read < max && pos + RECORD_HEADER <= limit && baseOffset + relative < end) {
+                header.clear();
+                channel.read(header, pos);
+                int length = header.getInt(0);
+                if (length <= 0 || pos + RECORD_HEADER + length > limit) break;
+                if (relative >= target) {
+                    ByteBuffer payload = ByteBuffer.allocate(length);
+                    channel.read(payload, pos + RECORD_HEADER);
+                    payload.flip();
+                    consumer.accept(baseOffset + relative, header.getLong(8), payload);
+                    read++;
+                }
+                pos += RECORD_HEADER + length;
+                relative++;
+            }
+            return read;
+        }
+
+        // Muc index lon nhat co offset <= target: {offset tuong doi, vi tri}
+        private int[] lookup(int target) {
+            int low = 0;
+            int high = indexEntries - 1;
+            int[] best = {0, 0};
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int relative = index.getInt(mid * 8);
+                if (relative <= target) {
+                    best[0] = relative;
+                    best[1] = index.getInt(mid * 8 + 4);
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return best;
+        }
+
+        private void recover() throws IOException {
+            // so muc index hop le: tang dan va nam trong file
+            long size = channel.size();
+            while ((indexEntries + 1) * 8 <= index.capacity()) {
+                int relative = index.getInt(indexEntries * 8);
+                int pos = index.getInt(indexEntries * 8 + 4);
+                if (indexEntries > 0 && (relative <= index.getInt((indexEntries - 1) * 8) || pos <= 0)) break;
+                if (pos < 0 || pos >= size) break;
+                indexEntries++;
+            }
+            int[] start = lookup(Integer.MAX_VALUE);
+            int relative = start[0];
+            int pos = start[1];
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+            while (pos + RECORD_HEADER <= size) {
+                header.clear();
+                channel.read(header, pos);
+                int length = header.getInt(0);
+                if (length <= 0 || pos + RECORD_HEADER + length > size) break;
+                ByteBuffer payload = ByteBuffer.allocate(length);
+                channel.read(payload, pos + RECORD_HEADER);
+                payload.flip();
+                CRC32C crc = new CRC32C();
+                crc.update(payload);
+                if ((int) crc.getValue() != header.getInt(4)) break;
+                pos += RECORD_HEADER + length;
+                relative++;
+            }
+            position = pos;
+            count = relative;
+            lastIndexedPosition = indexEntries == 0 ? -INDEX_INTERVAL : index.getInt((indexEntries - 1) * 8 + 4);
+            if (log != null) {
+                // xoa phan ghi do dang sau diem ket thuc
+                for (int i = pos; i < Math.min(log.capacity(), pos + RECORD_HEADER); i++) {
+                    log.put(i, (byte) 0);
+                }
+            }
+        }
+
+        // Dung ghi vao segment; tra ve viec force cac buffer da map, chay ngoai khoa append
+        Runnable seal() {
+            MappedByteBuffer buffer = log;
+            MappedByteBuffer indexBuffer = index;
+            log = null;
+            return () -> {
+                buffer.force();
+                indexBuffer.force();
+            };
+        }
+
+        void force() {
+            MappedByteBuffer buffer = log;
+            if (buffer != null) {
+                buffer.force();
+            }
+            MappedByteBuffer indexBuffer = index;
+            if (indexBuffer != null && !indexBuffer.isReadOnly()) {
+                indexBuffer.force();
+            }
+        }
+
+        // false neu segment da dong
+        boolean acquire() {
+            while (true) {
+                int current = refs.get();
+                if (current == 0) return false;
+                if (refs.compareAndSet(current, current + 1)) return true;
+            }
+        }
+
+        void release() throws IOException {
+            if (refs.decrementAndGet() > 0) return;
+            channel.close();
+            if (deleted) {
+                Files.deleteIfExists(logFile);
+                Files.deleteIfExists(indexFile);
+            }
+        }
+
+        void close() throws IOException {
+            release();
+        }
+
+        void delete() throws IOException {
+            deleted = true;
+            release();
+        }
+    }
+}
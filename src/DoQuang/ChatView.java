@@ -0,0 +1,131 @@
+package DoQuang;
+
+import java.awt.event.MouseEvent;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.swing.*;
+
+// Khung chat thay cho JTextArea: chi giu maxRows dong gan nhat va chi ve cac dong dang thay.
+// append() goi duoc tu bat ky thread nao; cac dong moi duoc gom lai va dua vao model
+// nhieu nhat mot lan moi frame (FRAME_MILLIS) tren EDT.
+// So dong giu lai: setMaxRows() hoac -Dchat.view.rows=N (mac dinh 5000).
+public class ChatView extends JList<String> {
+    static final int DEFAULT_MAX_ROWS = 5000;
+    static final int FRAME_MILLIS = 16;
+
+    private final RingModel model;
+    private final ConcurrentLinkedQueue<String> incoming = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Timer flushTimer;
+
+    public ChatView() {
+        model = new RingModel(Integer.getInteger("chat.view.rows", DEFAULT_MAX_ROWS));
+        setModel(model);
+        setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        // chieu cao co dinh de JList khong phai do tung dong; chieu rong theo khung nhin,
+        // dong qua dai bi cat va xem day du bang tooltip
+        setFixedCellHeight(getFontMetrics(getFont()).getHeight() + 2);
+        setFixedCellWidth(1);
+        setToolTipText("");
+        flushTimer = new Timer(FRAME_MILLIS, e -> flush());
+        flushTimer.setRepeats(false);
+    }
+
+    public void setMaxRows(int maxRows) {
+        if (maxRows < 1) {
+            throw new IllegalArgumentException("Invalid max rows " + maxRows);
+        }
+        SwingUtilities.invokeLater(() -> model.resize(maxRows));
+    }
+
+    public int getMaxRows() {
+        return model.capacity();
+    }
+
+    public void append(String line) {
+        incoming.add(line);
+        if (scheduled.compareAndSet(false, true)) {
+            flushTimer.restart();
+        }
+    }
+
+    private void flush() {
+        scheduled.set(false);
+        List<String> lines = new ArrayList<>();
+        for (String line; (line = incoming.poll()) != null; ) {
+            lines.add(line);
+        }
+        if (lines.isEmpty()) return;
+        // dang o cuoi thi cuon theo dong moi, dang xem dong cu thi giu nguyen
+        int last = getLastVisibleIndex();
+        boolean follow = last < 0 || last >= model.getSize() - 1;
+        model.addAll(lines);
+        if (follow) {
+            ensureIndexIsVisible(model.getSize() - 1);
+        }
+    }
+
+    @Override
+    public String getToolTipText(MouseEvent event) {
+        int index = locationToIndex(event.getPoint());
+        return index < 0 ? null : model.getElementAt(index);
+    }
+
+    // Vong dem co dinh cac dong, chi sua tren EDT
+    private static final class RingModel extends AbstractListModel<String> {
+        private String[] rows;
+        private int head;
+        private int size;
+
+        RingModel(int capacity) {
+            rows = new String[Math.max(1, capacity)];
+        }
+
+        int capacity() {
+            return rows.length;
+        }
+
+        @Override
+        public int getSize() {
+            return size;
+        }
+
+        @Override
+        public String getElementAt(int index) {
+            return rows[(head + index) % rows.length];
+        }
+
+        void addAll(List<String> lines) {
+            int from = Math.max(0, lines.size() - rows.length);
+            int added = lines.size() - from;
+            int removed = Math.max(0, size + added - rows.length);
+            if (removed > 0) {
+                head = (head + removed) % rows.length;
+                size -= removed;
+                fireIntervalRemoved(this, 0, removed - 1);
+            }
+            for (int i = from; i < lines.size(); i++) {
+                rows[(head + size) % rows.length] = lines.get(i);
+                size++;
+            }
+            fireIntervalAdded(this, size - added, size - 1);
+        }
+
+        void resize(int capacity) {
+            String[] resized = new String[capacity];
+            int keep = Math.min(size, capacity);
+            for (int i = 0; i < keep; i++) {
+                resized[i] = getElementAt(size - keep + i);
+            }
+            int removed = size - keep;
+            rows = resized;
+            head = 0;
+            size = keep;
+            if (removed > 0) {
+                fireIntervalRemoved(this, 0, removed - 1);
+            }
+        }
+    }
+}
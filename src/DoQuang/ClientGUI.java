@@ -52,6 +52,8 @@ public class ClientGUI extends javax.swing.JFrame implements ChatListener {
         }
 
         client = new ChatClient(host, port, this);
+        // gui nickname ngay sau bat tay, de nhan tin rieng va danh sach online
+        client.setNickname(username);
         client.connect();
         
         btnConnect.setEnabled(false);
@@ -61,15 +63,119 @@ public class ClientGUI extends javax.swing.JFrame implements ChatListener {
 
     private void sendMessage() {
         String message = txtMessage.getText().trim();
-        if (!message.isEmpty()) {
-            client.sendMessage(txtName.getText(), message);
+        if (message.equals("/file")) {
+            sendFile();
             txtMessage.setText("");
+        } else if (message.startsWith("/get ")) {
+            downloadFile(message.substring(5).trim());
+            txtMessage.setText("");
+        } else if (message.startsWith("/msg ")) {
+            // "/msg nickname noi dung": tin rieng
+            String[] parts = message.substring(5).trim().split(" ", 2);
+            if (parts.length < 2 || parts[1].isBlank()) {
+                JOptionPane.showMessageDialog(this, "Cu phap: /msg nickname noi dung", "Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            client.sendDirectAsync(parts[0], parts[1]).whenComplete((ignored, error) -> {
+                if (error != null) {
+                    javax.swing.SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this,
+                            "Khong gui duoc tin nhan: " + error, "Error", JOptionPane.ERROR_MESSAGE));
+                }
+            });
+            txtMessage.setText("");
+        } else if (message.startsWith("/nick ")) {
+            String nickname = message.substring(6).trim();
+            if (!nickname.isEmpty()) {
+                txtName.setText(nickname);
+                client.setNickname(nickname);
+            }
+            txtMessage.setText("");
+        } else if (!message.isEmpty()) {
+            // khong cho ghi xong: hang doi gui day hoac mat ket noi thi bao loi sau
+            client.sendMessageAsync(txtName.getText(), message).whenComplete((ignored, error) -> {
+                if (error != null) {
+                    javax.swing.SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this,
+                            "Khong gui duoc tin nhan: " + error, "Error", JOptionPane.ERROR_MESSAGE));
+                }
+            });
+            txtMessage.setText("");
+        }
+    }
+
+    // "/file": chon file de gui vao phong mac dinh
+    private void sendFile() {
+        javax.swing.JFileChooser chooser = new javax.swing.JFileChooser();
+        if (chooser.showOpenDialog(this) != javax.swing.JFileChooser.APPROVE_OPTION) return;
+        java.nio.file.Path file = chooser.getSelectedFile().toPath();
+        lstChatArea.append("Dang gui file " + file.getFileName() + "...");
+        client.sendFile(txtName.getText(), null, file).whenComplete((ignored, error) -> {
+            lstChatArea.append(error == null ? "Da gui file " + file.getFileName()
+                    : "Khong gui duoc file " + file.getFileName() + ": " + error.getMessage());
+        });
+    }
+
+    // "/get <id>": tai file da duoc bao trong phong
+    private void downloadFile(String id) {
+        int fileId;
+        try {
+            fileId = Integer.parseInt(id);
+        } catch (NumberFormatException e) {
+            JOptionPane.showMessageDialog(this, "Ma file khong hop le!", "Error", JOptionPane.ERROR_MESSAGE);
+            return;
         }
+        javax.swing.JFileChooser chooser = new javax.swing.JFileChooser();
+        if (chooser.showSaveDialog(this) != javax.swing.JFileChooser.APPROVE_OPTION) return;
+        client.downloadFile(fileId, chooser.getSelectedFile().toPath()).whenComplete((path, error) -> {
+            lstChatArea.append(error == null ? "Da tai file ve " + path : "Khong tai duoc file: " + error.getMessage());
+        });
     }
 
     @Override
     public void onMessageReceived(ChatMessage message) {
-        txtaChatArea.append(message.getSender() + ": " + message.getMessage() + "\n");
+        String room = message.getRoom();
+        String prefix = room == null || room.equals(RoomRegistry.DEFAULT_ROOM) ? "" : "[" + room + "] ";
+        if (message.getType() == ChatMessage.Type.ROSTER) {
+            showRoster(message.getMessage());
+            return;
+        }
+        if (message.getRecipient() != null) {
+            lstChatArea.append("[rieng] " + message.getSender() + " -> " + message.getRecipient() + ": " + message.getMessage());
+            return;
+        }
+        if (message.getType() == ChatMessage.Type.FILE) {
+            // "fileId size ten"
+            String[] file = message.getMessage().split(" ", 3);
+            lstChatArea.append(prefix + message.getSender() + " gui file " + file[2] + " (" + file[1] + " byte), go /get "
+                    + file[0] + " de tai");
+            return;
+        }
+        lstChatArea.append(prefix + message.getSender() + ": " + message.getMessage());
+    }
+
+
+    // Snapshot: ca danh sach mot dong; delta: moi thay doi mot dong
+    private void showRoster(String body) {
+        String[] lines = body.split("\n");
+        if (lines[0].startsWith("S")) {
+            java.util.List<String> online = client.getRoster();
+            lstChatArea.append("Dang online (" + online.size() + "): " + String.join(", ", online));
+            return;
+        }
+        if (!lines[0].startsWith("D")) return;
+        for (int i = 1; i < lines.length; i++) {
+            String name = lines[i].substring(1);
+            switch (lines[i].charAt(0)) {
+                case '+':
+                    lstChatArea.append(name + " da vao");
+                    break;
+                case '-':
+                    lstChatArea.append(name + " da roi");
+                    break;
+                case '~':
+                    lstChatArea.append(name.replace("\t", " doi ten thanh "));
+                    break;
+            }
+        }
     }
 
 
@@ -91,7 +197,7 @@ public class ClientGUI extends javax.swing.JFrame implements ChatListener {
         jLabel4 = new javax.swing.JLabel();
         jPanel2 = new javax.swing.JPanel();
         jScrollPane1 = new javax.swing.JScrollPane();
-        txtaChatArea = new javax.swing.JTextArea();
+        lstChatArea = new DoQuang.ChatView();
         txtMessage = new javax.swing.JTextField();
         btnSend = new javax.swing.JButton();
         jLabel5 = new javax.swing.JLabel();
@@ -178,10 +284,7 @@ public class ClientGUI extends javax.swing.JFrame implements ChatListener {
                 .addContainerGap())
         );
 
-        txtaChatArea.setEditable(false);
-        txtaChatArea.setColumns(20);
-        txtaChatArea.setRows(5);
-        jScrollPane1.setViewportView(txtaChatArea);
+        jScrollPane1.setViewportView(lstChatArea);
 
         btnSend.setText("GUI");
         btnSend.setFocusable(false);
@@ -331,6 +434,6 @@ public class ClientGUI extends javax.swing.JFrame implements ChatListener {
     private javax.swing.JTextField txtMessage;
     private javax.swing.JTextField txtName;
     private javax.swing.JTextField txtPort;
-    private javax.swing.JTextArea txtaChatArea;
+    private DoQuang.ChatView lstChatArea;
     // End of variables declaration//GEN-END:variables
 }
@@ -0,0 +1,313 @@
+package DoQuang;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Noi nhieu ChatServer thanh mot cluster. Moi node nghe tren relayPort va tu noi toi
+// tung peer trong danh sach co dinh (can noi day du: moi node liet ke tat ca node khac).
+// Message do client cua node nay gui duoc gan ID (origin, seq) va gui qua moi link;
+// node nhan chi phat cho client cua minh, khong chuyen tiep tiep.
+// Frame relay: [do dai][so message] roi moi message [origin][seq][frame ma hoa binary].
+// Ben nhan tra ve seq cuoi cua moi batch da xu ly (ack). Link dut thi noi lai va gui lai
+// moi message chua duoc ack, ben nhan bo qua ID da co.
+final class ClusterRelay implements Closeable {
+    static final int MAGIC = 0x44515231;
+    static final int MAX_BATCH_BYTES = 256 * 1024;
+    static final int MAX_BATCH_MESSAGES = 512;
+    static final int LINK_QUEUE_CAPACITY = 65536;
+    static final long RECONNECT_MILLIS = 1000;
+
+    private static final class Relayed {
+        final long origin;
+        final long seq;
+        final ChatFrame frame;
+
+        Relayed(long origin, long seq, ChatFrame frame) {
+            this.origin = origin;
+            this.seq = seq;
+            this.frame = frame;
+        }
+    }
+
+    private final ChatServer server;
+    private final int relayPort;
+    private final List<InetSocketAddress> peers;
+    // ID ngau nhien moi lan chay, node khoi dong lai duoc xem nhu node moi
+    private final long nodeId = ThreadLocalRandom.current().nextLong();
+    private final AtomicLong nextSeq = new AtomicLong();
+    // seq lon nhat da nhan tu moi origin; moi origin gui toi day qua mot link TCP nen seq tang dan
+    private final ConcurrentHashMap<Long, AtomicLong> lastSeen = new ConcurrentHashMap<>();
+    private final List<PeerLink> links = new ArrayList<>();
+    private final Set<Socket> inbound = ConcurrentHashMap.newKeySet();
+    private ServerSocket serverSocket;
+    private ExecutorService executor;
+    private volatile boolean running = true;
+
+    ClusterRelay(ChatServer server, int relayPort, List<InetSocketAddress> peers) {
+        this.server = server;
+        this.relayPort = relayPort;
+        this.peers = List.copyOf(peers);
+    }
+
+    // "host:port,host:port"
+    static List<InetSocketAddress> parsePeers(String peers) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String peer : peers.split(",")) {
+            peer = peer.trim();
+            if (peer.isEmpty()) continue;
+            int colon = peer.lastIndexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("Expected host:port: " + peer);
+            }
+            addresses.add(InetSocketAddress.createUnresolved(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+        }
+        return addresses;
+    }
+
+    void start(ExecutorService executor) throws IOException {
+        this.executor = executor;
+        serverSocket = new ServerSocket(relayPort);
+        System.out.println("Cluster relay on port " + relayPort + ", " + peers.size() + " peers");
+        executor.execute(this::acceptLoop);
+        for (InetSocketAddress peer : peers) {
+            PeerLink link = new PeerLink(peer);
+            links.add(link);
+            executor.execute(link::run);
+        }
+    }
+
+    // Gui message cua client node nay toi moi peer. synchronized de seq vao moi hang doi
+    // theo dung thu tu tang dan, neu khong ben nhan se coi seq den tre la trung.
+    synchronized void relay(ChatFrame frame) {
+        Relayed relayed = new Relayed(nodeId, nextSeq.incrementAndGet(), frame);
+        for (PeerLink link : links) {
+            link.offer(relayed);
+        }
+    }
+
+    // true neu ID chua tung nhan
+    private boolean firstSeen(long origin, long seq) {
+        if (origin == nodeId) return false;
+        AtomicLong last = lastSeen.computeIfAbsent(origin, id -> new AtomicLong(Long.MIN_VALUE));
+        while (true) {
+            long current = last.get();
+            if (seq <= current) return false;
+            if (last.compareAndSet(current, seq)) return true;
+        }
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                inbound.add(socket);
+                executor.execute(() -> readLink(socket));
+            } catch (IOException e) {
+                if (running) e.printStackTrace();
+            }
+        }
+    }
+
+    private void readLink(Socket socket) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024))) {
+            DataOutputStream ack = new DataOutputStream(socket.getOutputStream());
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a cluster relay connection");
+            }
+            long peerId = in.readLong();
+            System.out.println("Cluster link from " + socket.getRemoteSocketAddress() + " (node " + Long.toHexString(peerId) + ")");
+            while (running) {
+                int length = in.readInt();
+                if (length < 4 || length > MAX_BATCH_BYTES + ChatCodecs.MAX_FRAME_SIZE) {
+                    throw new IOException("Invalid relay batch length " + length);
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                ByteBuffer batch = ByteBuffer.wrap(payload);
+                int count = batch.getInt();
+                long lastSeq = 0;
+                for (int i = 0; i < count; i++) {
+                    long origin = batch.getLong();
+                    long seq = batch.getLong();
+                    int frameLength = batch.getInt();
+                    ChatCodecs.checkLength(frameLength);
+                    ByteBuffer frame = batch.slice(batch.position(), frameLength);
+                    batch.position(batch.position() + frameLength);
+                    lastSeq = seq;
+                    server.metrics.relayIn.increment();
+                    if (!firstSeen(origin, seq)) {
+                        server.metrics.relayDuplicates.increment();
+                        continue;
+                    }
+                    server.broadcastLocal(ChatCodecs.BINARY.decode(frame));
+                }
+                if (count > 0) {
+                    ack.writeLong(lastSeq);
+                    ack.flush();
+                }
+            }
+        } catch (EOFException | SocketException e) {
+            // peer dong link
+        } catch (IOException | RuntimeException e) {
+            if (running) System.out.println("Cluster link " + socket.getRemoteSocketAddress() + " failed: " + e.getMessage());
+        } finally {
+            inbound.remove(socket);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        if (serverSocket != null) {
+            serverSocket.close();
+        }
+        for (PeerLink link : links) {
+            link.close();
+        }
+        for (Socket socket : inbound) {
+            socket.close();
+        }
+    }
+
+    // Link di toi mot peer: hang doi rieng, mot thread gom message thanh batch va ghi,
+    // mot thread khac doc ack
+    private final class PeerLink {
+        private final InetSocketAddress address;
+        private final BlockingQueue<Relayed> queue = new ArrayBlockingQueue<>(LINK_QUEUE_CAPACITY);
+        // da lay ra khoi hang doi, chua ghi (chi thread ghi dung)
+        private final List<Relayed> pending = new ArrayList<>();
+        // da ghi nhung peer chua ack, gui lai khi noi lai (chi thread ghi dung)
+        private final ArrayDeque<Relayed> unacked = new ArrayDeque<>();
+        private final AtomicLong acked = new AtomicLong(Long.MIN_VALUE);
+        private volatile SocketChannel channel;
+        private volatile Thread thread;
+
+        PeerLink(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        // Hang doi day (peer chet lau) thi bo message cu nhat
+        void offer(Relayed relayed) {
+            while (!queue.offer(relayed)) {
+                if (queue.poll() != null) server.metrics.relayDropped.increment();
+            }
+        }
+
+        void run() {
+            thread = Thread.currentThread();
+            WriteBatch batch = new WriteBatch(2 * MAX_BATCH_MESSAGES + 1);
+            while (running) {
+                try (SocketChannel channel = SocketChannel.open()) {
+                    channel.socket().connect(new InetSocketAddress(address.getHostString(), address.getPort()), (int) RECONNECT_MILLIS);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    this.channel = channel;
+                    ByteBuffer hello = ByteBuffer.allocate(12).putInt(MAGIC).putLong(nodeId).flip();
+                    while (hello.hasRemaining()) {
+                        channel.write(hello);
+                    }
+                    executor.execute(() -> readAcks(channel));
+                    System.out.println("Cluster link to " + address.getHostString() + ":" + address.getPort() + " up");
+                    while (running) {
+                        if (pending.isEmpty()) {
+                            pending.add(queue.take());
+                            queue.drainTo(pending, MAX_BATCH_MESSAGES - 1);
+                        }
+                        writeBatch(channel, batch);
+                    }
+                } catch (InterruptedException | ClosedByInterruptException e) {
+                    return;
+                } catch (IOException e) {
+                    batch.clear();
+                    // gui lai tu message cu nhat chua duoc ack
+                    trimAcked();
+                    pending.addAll(0, unacked);
+                    unacked.clear();
+                    if (!running) return;
+                    try {
+                        Thread.sleep(RECONNECT_MILLIS);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        // Ghi cac message dang cho thanh mot hoac vai frame relay bang gathering write
+        private void writeBatch(SocketChannel channel, WriteBatch batch) throws IOException {
+            while (!pending.isEmpty()) {
+                int length = 4;
+                int count = 0;
+                int limit = Math.min(pending.size(), MAX_BATCH_MESSAGES);
+                ByteBuffer[] frames = new ByteBuffer[limit];
+                while (count < limit) {
+                    ByteBuffer frame = pending.get(count).frame.view(ChatCodecs.BINARY);
+                    if (count > 0 && length + 16 + frame.remaining() > MAX_BATCH_BYTES) break;
+                    frames[count++] = frame;
+                    length += 16 + frame.remaining();
+                }
+                ByteBuffer header = ByteBuffer.allocate(8 + 16 * count);
+                header.putInt(length).putInt(count);
+                batch.add(header.slice(0, 8));
+                for (int i = 0; i < count; i++) {
+                    Relayed relayed = pending.get(i);
+                    int at = 8 + 16 * i;
+                    header.putLong(at, relayed.origin).putLong(at + 8, relayed.seq);
+                    batch.add(header.slice(at, 16));
+                    batch.add(frames[i]);
+                }
+                while (!batch.write(channel)) {
+                    // channel blocking, thuong ghi het trong mot lan
+                }
+                server.metrics.relayOut.add(count);
+                List<Relayed> written = pending.subList(0, count);
+                unacked.addAll(written);
+                written.clear();
+                trimAcked();
+                // peer khong ack (vd. treo) thi khong giu mai
+                while (unacked.size() > LINK_QUEUE_CAPACITY) {
+                    unacked.poll();
+                    server.metrics.relayDropped.increment();
+                }
+            }
+        }
+
+        private void trimAcked() {
+            long last = acked.get();
+            while (!unacked.isEmpty() && unacked.peek().seq <= last) {
+                unacked.poll();
+            }
+        }
+
+        private void readAcks(SocketChannel channel) {
+            ByteBuffer buffer = ByteBuffer.allocate(8);
+            try {
+                while (channel.read(buffer) >= 0) {
+                    if (buffer.hasRemaining()) continue;
+                    long seq = buffer.flip().getLong();
+                    acked.accumulateAndGet(seq, Math::max);
+                    buffer.clear();
+                }
+            } catch (IOException e) {
+                // link dong, thread ghi se noi lai
+            }
+        }
+
+        void close() throws IOException {
+            Thread t = thread;
+            if (t != null) t.interrupt();
+            SocketChannel c = channel;
+            if (c != null) c.close();
+        }
+    }
+}
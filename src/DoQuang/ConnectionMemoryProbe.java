@@ -0,0 +1,138 @@
+package DoQuang;
+
+import java.io.*;
+import java.lang.management.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+// Do bo nho cho moi ket noi cua ChatServer o che do blocking voi platform thread va virtual thread.
+// Chay moi che do trong mot JVM rieng:
+//   java -cp dist/DoAnUDChat.jar DoQuang.ConnectionMemoryProbe platform 2000
+//   java -cp dist/DoAnUDChat.jar DoQuang.ConnectionMemoryProbe virtual 2000
+public class ConnectionMemoryProbe {
+    private static final long CONNECT_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(120);
+
+    public static void main(String[] args) throws Exception {
+        ChatExecutors.Mode mode = args.length > 0 ? ChatExecutors.Mode.valueOf(args[0].toUpperCase()) : ChatExecutors.Mode.VIRTUAL;
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : 5999;
+
+        ChatServer server = new ChatServer(port);
+        server.setExecutor(ChatExecutors.create(mode));
+        Thread serverThread = new Thread(server::start, "probe-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        waitForPort(port);
+
+        // Phia client dung mot Selector duy nhat de doc bo du lieu, khong tao thread cho moi ket noi
+        Selector selector = Selector.open();
+        Thread drain = new Thread(() -> drain(selector), "probe-drain");
+        drain.setDaemon(true);
+        drain.start();
+
+        long baseRss = rss();
+        long baseHeap = usedHeap();
+        int baseThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+        long started = System.nanoTime();
+
+        List<SocketChannel> channels = new ArrayList<>(connections);
+        for (int i = 0; i < connections; i++) {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+            // loi chao codec: server chi tinh ket noi sau handshake; tra loi cua server do drain doc bo
+            ByteBuffer hello = ChatCodecs.hello(ChatCodecs.ALL);
+            while (hello.hasRemaining()) {
+                channel.write(hello);
+            }
+            channel.configureBlocking(false);
+            channels.add(channel);
+            channel.register(selector, SelectionKey.OP_READ);
+            selector.wakeup();
+        }
+        // khong treo mai neu server khong nhan du ket noi (vd. handshake loi)
+        long deadline = System.nanoTime() + CONNECT_TIMEOUT_NANOS;
+        while (server.getConnectedClients() < connections) {
+            if (System.nanoTime() - deadline > 0) {
+                System.out.printf("only %d of %d connections registered, giving up%n", server.getConnectedClients(), connections);
+                server.stop();
+                System.exit(1);
+            }
+            Thread.sleep(50);
+        }
+        Thread.sleep(1000);
+
+        long rss = rss() - baseRss;
+        long heap = usedHeap() - baseHeap;
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount() - baseThreads;
+        System.out.printf("mode=%s connections=%d setup=%dms%n", mode, connections, (System.nanoTime() - started) / 1_000_000);
+        System.out.printf("platform threads added: %d%n", threads);
+        System.out.printf("heap used: %d KB total, %d bytes/connection%n", heap / 1024, heap / connections);
+        if (baseRss > 0) {
+            System.out.printf("RSS: %d KB total, %d bytes/connection%n", rss / 1024, rss / connections);
+        }
+
+        for (SocketChannel channel : channels) {
+            channel.close();
+        }
+        server.stop();
+        System.exit(0);
+    }
+
+    private static void drain(Selector selector) {
+        ByteBuffer sink = ByteBuffer.allocateDirect(64 * 1024);
+        try {
+            while (true) {
+                selector.select();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    sink.clear();
+                    try {
+                        if (((SocketChannel) key.channel()).read(sink) < 0) key.cancel();
+                    } catch (IOException e) {
+                        key.cancel();
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            // ket thuc
+        }
+    }
+
+    private static void waitForPort(int port) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("localhost", port), 100);
+                break;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        Thread.sleep(200);
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        return heap.getUsed();
+    }
+
+    // VmRSS tu /proc, tra ve -1 neu khong phai Linux
+    private static long rss() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // khong ho tro
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,390 @@
+package DoQuang;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Chuyen file theo tung khuc, chi voi codec binary.
+// Upload: client gui FILE "id size ten" (id do client chon) roi cac frame du lieu
+//   [TYPE_FILE_DATA][id int][offset long][byte...]. Server ghi vao thu muc spool va tra
+//   FILE_ACK "id so-byte-da-nhan" cho moi khuc; client chi gui truoc toi da WINDOW khuc chua ack.
+//   Nhan du thi server bao FILE "fileId size ten" cho phong (chi node nay, file khong qua cluster).
+// Download: client gui FILE_GET "fileId"; server tra FILE_GET "fileId size ten" roi cac frame
+//   du lieu voi id = fileId, ghi bang FileChannel.transferTo nen noi dung file khong di qua heap.
+//   Writer cua client gui cac frame chat dang cho truoc moi khuc, nen chat khong phai cho ca file.
+// Loi: FILE_ACK hoac FILE_GET voi size -1 kem ly do.
+// Dung luong: moi file (ke ca file rong) tinh it nhat MIN_FILE_CHARGE byte va toi da MAX_FILES file.
+// File da luu bi bo sau FILE_TTL_MINUTES, hoac som hon khi spool day (file lau nhat khong ai tai
+// bi bo truoc); channel chi dong khi cac FileSend dang doc no da xong.
+final class FileSpool implements Closeable {
+    static final int CHUNK_SIZE = 64 * 1024;
+    static final int WINDOW = 4;
+    static final int MAX_UPLOADS_PER_CLIENT = 4;
+    static final int MAX_NAME_LENGTH = 255;
+    static final long MIN_FILE_CHARGE = CHUNK_SIZE;
+    static final int MAX_FILES = 1024;
+    static final long FILE_TTL_MINUTES = 60;
+
+    // File da nhan du, nhieu writer cung doc bang transferTo theo vi tri nen dung chung channel.
+    // Dem tham chieu: spool giu mot tham chieu toi khi bo file, moi FileSend giu mot tham chieu
+    // toi khi gui xong; tham chieu cuoi cung dong channel (file tu xoa).
+    static final class SpooledFile {
+        final int id;
+        final String name;
+        final long size;
+        final FileChannel channel;
+        private final AtomicInteger refs = new AtomicInteger(1);
+        final long storedNanos = System.nanoTime();
+        volatile long lastUsedNanos = storedNanos;
+
+        SpooledFile(int id, String name, long size, FileChannel channel) {
+            this.id = id;
+            this.name = name;
+            this.size = size;
+            this.channel = channel;
+        }
+
+        // false neu file da bi bo va channel da dong
+        boolean retain() {
+            while (true) {
+                int current = refs.get();
+                if (current == 0) return false;
+                if (refs.compareAndSet(current, current + 1)) return true;
+            }
+        }
+
+        void release() {
+            if (refs.decrementAndGet() == 0) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    // Upload dang nhan, chi thread doc cua client gui dung
+    static final class Upload {
+        final int fileId;
+        final String sender;
+        final String room;
+        final String name;
+        final long size;
+        final FileChannel channel;
+        long received;
+
+        Upload(int fileId, String sender, String room, String name, long size, FileChannel channel) {
+            this.fileId = fileId;
+            this.sender = sender;
+            this.room = room;
+            this.name = name;
+            this.size = size;
+            this.channel = channel;
+        }
+    }
+
+    private final ChatServer server;
+    private final Path dir;
+    private final long maxFileBytes;
+    private final long maxSpoolBytes;
+    private final AtomicInteger nextId = new AtomicInteger();
+    // byte (theo charge()) va so file da dat cho cac file dang nhan va da luu
+    private final AtomicLong spoolBytes = new AtomicLong();
+    private final AtomicInteger spoolFiles = new AtomicInteger();
+    private final ConcurrentHashMap<Integer, SpooledFile> files = new ConcurrentHashMap<>();
+    private ScheduledFuture<?> expiry;
+
+    FileSpool(ChatServer server, Path dir, long maxFileBytes, long maxSpoolBytes) {
+        this.server = server;
+        this.dir = dir;
+        this.maxFileBytes = maxFileBytes;
+        this.maxSpoolBytes = maxSpoolBytes;
+    }
+
+    void open() throws IOException {
+        Files.createDirectories(dir);
+        expiry = ChatExecutors.scheduler().scheduleWithFixedDelay(this::expire, 1, 1, TimeUnit.MINUTES);
+    }
+
+    // So byte mot file chiem trong gioi han spool
+    static long charge(long size) {
+        return Math.max(size, MIN_FILE_CHARGE);
+    }
+
+    static ByteBuffer dataHeader(int id, long offset, int length) {
+        return ByteBuffer.allocate(4 + 13).putInt(13 + length).put(BinaryChatCodec.TYPE_FILE_DATA)
+                .putInt(id).putLong(offset).flip();
+    }
+
+    static boolean isData(ChatCodec codec, ByteBuffer payload) {
+        return codec == ChatCodecs.BINARY && payload.remaining() > 0
+                && payload.get(payload.position()) == BinaryChatCodec.TYPE_FILE_DATA;
+    }
+
+    // FILE tu client: bat dau mot upload vao phong room
+    void offer(ChatServer.ClientHandler client, String room, ChatMessage message) {
+        String[] parts = String.valueOf(message.getMessage()).split(" ", 3);
+        int transferId;
+        long size;
+        try {
+            transferId = Integer.parseInt(parts[0]);
+            size = Long.parseLong(parts[1]);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            client.sendMessage(new ChatMessage("Server", "Invalid file offer"));
+            return;
+        }
+        // chi giu ten, bo phan duong dan
+        String name = parts.length > 2 ? parts[2].substring(Math.max(parts[2].lastIndexOf('/'), parts[2].lastIndexOf('\\')) + 1) : "";
+        if (!supported(client)) return;
+        if (name.isEmpty() || name.length() > MAX_NAME_LENGTH || size < 0) {
+            reply(client, ChatMessage.Type.FILE_ACK, transferId, "-1 invalid file");
+            return;
+        }
+        if (size > maxFileBytes) {
+            reply(client, ChatMessage.Type.FILE_ACK, transferId, "-1 file larger than " + maxFileBytes + " bytes");
+            return;
+        }
+        if (client.uploads.containsKey(transferId) || client.uploads.size() >= MAX_UPLOADS_PER_CLIENT) {
+            reply(client, ChatMessage.Type.FILE_ACK, transferId, "-1 too many uploads");
+            return;
+        }
+        if (!reserve(charge(size))) {
+            reply(client, ChatMessage.Type.FILE_ACK, transferId, "-1 spool full");
+            return;
+        }
+        int fileId = nextId.incrementAndGet();
+        try {
+            // file trong spool tu xoa khi dong channel
+            Path path = Files.createTempFile(dir, fileId + "-", ".spool");
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE);
+            Upload upload = new Upload(fileId, message.getSender(), room, name, size, channel);
+            client.uploads.put(transferId, upload);
+            if (size == 0) {
+                completed(client, transferId, upload);
+            }
+        } catch (IOException e) {
+            unreserve(charge(size));
+            reply(client, ChatMessage.Type.FILE_ACK, transferId, "-1 " + e.getMessage());
+        }
+    }
+
+    // Frame du lieu tu client
+    void data(ChatServer.ClientHandler client, ByteBuffer payload) throws IOException {
+        if (payload.remaining() < 13) {
+            throw new StreamCorruptedException("Truncated file chunk");
+        }
+        ByteBuffer in = payload.duplicate();
+        in.get();
+        int transferId = in.getInt();
+        long offset = in.getLong();
+        Upload upload = client.uploads.get(transferId);
+        if (upload == null) return;
+        if (offset != upload.received || upload.received + in.remaining() > upload.size) {
+            abort(client, transferId, upload, "bad chunk offset");
+            return;
+        }
+        try {
+            while (in.hasRemaining()) {
+                upload.received += upload.channel.write(in, upload.received);
+            }
+        } catch (IOException e) {
+            abort(client, transferId, upload, e.getMessage());
+            return;
+        }
+        reply(client, ChatMessage.Type.FILE_ACK, transferId, String.valueOf(upload.received));
+        if (upload.received == upload.size) {
+            completed(client, transferId, upload);
+        }
+    }
+
+    private void completed(ChatServer.ClientHandler client, int transferId, Upload upload) {
+        client.uploads.remove(transferId);
+        if (upload.size == 0) {
+            reply(client, ChatMessage.Type.FILE_ACK, transferId, "0");
+        }
+        files.put(upload.fileId, new SpooledFile(upload.fileId, upload.name, upload.size, upload.channel));
+        server.metrics.filesReceived.increment();
+        server.broadcastLocal(new ChatMessage(ChatMessage.Type.FILE, upload.sender, upload.room,
+                upload.fileId + " " + upload.size + " " + upload.name));
+    }
+
+    private void abort(ChatServer.ClientHandler client, int transferId, Upload upload, String reason) {
+        client.uploads.remove(transferId);
+        discard(upload);
+        reply(client, ChatMessage.Type.FILE_ACK, transferId, "-1 " + reason);
+    }
+
+    private void discard(Upload upload) {
+        unreserve(charge(upload.size));
+        try {
+            upload.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Client ngat ket noi giua chung: bo cac upload chua xong
+    void disconnected(ChatServer.ClientHandler client) {
+        for (Upload upload : client.uploads.values()) {
+            discard(upload);
+        }
+        client.uploads.clear();
+    }
+
+    // FILE_GET tu client
+    void get(ChatServer.ClientHandler client, ChatMessage message) {
+        int fileId;
+        try {
+            fileId = Integer.parseInt(String.valueOf(message.getMessage()).trim());
+        } catch (NumberFormatException e) {
+            client.sendMessage(new ChatMessage("Server", "Invalid file id"));
+            return;
+        }
+        if (!supported(client)) return;
+        SpooledFile file = files.get(fileId);
+        // vua bi bo thi retain() that bai
+        if (file == null || !file.retain()) {
+            reply(client, ChatMessage.Type.FILE_GET, fileId, "-1 no such file");
+            return;
+        }
+        file.lastUsedNanos = System.nanoTime();
+        // tra loi nam trong hang doi chat nen luon duoc ghi truoc khuc dau tien
+        reply(client, ChatMessage.Type.FILE_GET, fileId, file.size + " " + file.name);
+        client.sendFile(new FileSend(file));
+        server.metrics.filesSent.increment();
+    }
+
+    private boolean supported(ChatServer.ClientHandler client) {
+        if (client.getCodec() == ChatCodecs.BINARY) return true;
+        client.sendMessage(new ChatMessage("Server", "File transfer needs the binary codec"));
+        return false;
+    }
+
+    private static void reply(ChatServer.ClientHandler client, ChatMessage.Type type, int id, String body) {
+        client.sendMessage(new ChatMessage(type, "Server", null, id + " " + body));
+    }
+
+    // Dat truoc charge byte va mot file; spool day thi bo file lau nhat khong ai tai roi thu lai
+    private boolean reserve(long charge) {
+        while (true) {
+            long bytes = spoolBytes.addAndGet(charge);
+            int count = spoolFiles.incrementAndGet();
+            if (bytes <= maxSpoolBytes && count <= MAX_FILES) return true;
+            unreserve(charge);
+            if (!evictLeastRecentlyUsed()) return false;
+        }
+    }
+
+    private void unreserve(long charge) {
+        spoolBytes.addAndGet(-charge);
+        spoolFiles.decrementAndGet();
+    }
+
+    private boolean evictLeastRecentlyUsed() {
+        SpooledFile oldest = null;
+        for (SpooledFile file : files.values()) {
+            if (oldest == null || file.lastUsedNanos - oldest.lastUsedNanos < 0) {
+                oldest = file;
+            }
+        }
+        if (oldest == null) return false;
+        evict(oldest);
+        return true;
+    }
+
+    // Bo file khoi spool; FileSend dang gui van doc tiep toi khi xong
+    private void evict(SpooledFile file) {
+        if (files.remove(file.id, file)) {
+            unreserve(charge(file.size));
+            file.release();
+        }
+    }
+
+    private void expire() {
+        long ttl = TimeUnit.MINUTES.toNanos(FILE_TTL_MINUTES);
+        long now = System.nanoTime();
+        for (SpooledFile file : files.values()) {
+            if (now - file.storedNanos >= ttl) {
+                evict(file);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (expiry != null) {
+            expiry.cancel(false);
+        }
+        for (SpooledFile file : files.values()) {
+            evict(file);
+        }
+    }
+}
+
+// Mot file dang gui cho mot client, chi writer cua client do dung. Moi khuc la mot frame:
+// header trong heap, noi dung ghi thang tu file xuong socket bang transferTo.
+final class FileSend {
+    private final FileSpool.SpooledFile file;
+    private ByteBuffer header;
+    private long position;
+    private long chunkEnd;
+    private boolean inChunk;
+    // writer va thread dong ket noi deu co the goi close()
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    // file da retain(), FileSend tra tham chieu khi gui xong hoac close()
+    FileSend(FileSpool.SpooledFile file) {
+        this.file = file;
+    }
+
+    // Dang ghi do mot khuc: writer phai ghi tiep khuc nay truoc moi frame khac
+    boolean inChunk() {
+        return inChunk;
+    }
+
+    boolean done() {
+        return !inChunk && position >= file.size;
+    }
+
+    // Ghi tiep khuc dang do, hoac bat dau khuc moi. Tra ve so byte da ghi;
+    // inChunk() van true neu socket (non-blocking) day giua chung.
+    long write(WritableByteChannel channel) throws IOException {
+        if (!inChunk) {
+            if (position >= file.size) {
+                close();
+                return 0;
+            }
+            int length = (int) Math.min(FileSpool.CHUNK_SIZE, file.size - position);
+            header = FileSpool.dataHeader(file.id, position, length);
+            chunkEnd = position + length;
+            inChunk = true;
+        }
+        long written = 0;
+        while (header.hasRemaining()) {
+            int n = channel.write(header);
+            if (n == 0) return written;
+            written += n;
+        }
+        while (position < chunkEnd) {
+            long n = file.channel.transferTo(position, chunkEnd - position, channel);
+            if (n == 0) return written;
+            position += n;
+            written += n;
+        }
+        inChunk = false;
+        if (position >= file.size) close();
+        return written;
+    }
+
+    // Writer bo file chua gui xong (client ngat ket noi)
+    void close() {
+        if (released.compareAndSet(false, true)) {
+            file.release();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package DoQuang;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+// Vong dem cac frame gan day cua mot phong, dung de gui lai cho client moi vao.
+// Khong dung lock: moi thread broadcast lay mot so thu tu bang getAndIncrement roi ghi vao o cua no,
+// nguoi doc bo qua o chua ghi xong hoac da bi ghi de. Gioi han theo so message (capacity)
+// va theo tong byte (maxBytes): khi vuot maxBytes, frame cu nhat bi bo ra khoi vong.
+// So thu tu va kich thuoc nam ngay trong frame (historySeq, historyBytes; moi frame chi vao mot vong)
+// nen them frame khong tao doi tuong nao. Vong giu mot tham chieu toi moi frame, tra lai khi frame
+// bi ghi de hoac bi bo; snapshot() lay tham chieu moi cho nguoi doc.
+final class HistoryRing {
+    private final int capacity;
+    private final int mask;
+    private final long maxBytes;
+    private final AtomicReferenceArray<ChatFrame> slots;
+    private final AtomicLong next = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    HistoryRing(int capacity, long maxBytes) {
+        if (capacity < 1 || maxBytes < 1) {
+            throw new IllegalArgumentException("Invalid history capacity");
+        }
+        this.capacity = capacity;
+        int slotsLength = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.mask = slotsLength - 1;
+        this.maxBytes = maxBytes;
+        this.slots = new AtomicReferenceArray<>(slotsLength);
+    }
+
+    void add(ChatFrame frame, int size) {
+        long seq = next.getAndIncrement();
+        frame.historySeq = seq;
+        frame.historyBytes = size;
+        frame.retain();
+        ChatFrame old = slots.getAndSet((int) (seq & mask), frame);
+        if (old != null) {
+            bytes.addAndGet(-old.historyBytes);
+            old.release();
+        }
+        bytes.addAndGet(size);
+        // bo frame cu nhat cho toi khi duoi gioi han byte (luon giu frame vua them)
+        while (bytes.get() > maxBytes) {
+            long t = tail.get();
+            if (t >= seq) break;
+            if (tail.compareAndSet(t, t + 1)) {
+                int index = (int) (t & mask);
+                ChatFrame entry = slots.get(index);
+                if (entry != null && entry.historySeq == t && slots.compareAndSet(index, entry, null)) {
+                    bytes.addAndGet(-entry.historyBytes);
+                    entry.release();
+                }
+            }
+        }
+    }
+
+    // Cac frame gan nhat, cu truoc moi sau. Nguoi goi giu mot tham chieu toi moi frame tra ve
+    // va phai release() khi xong (vd. sau khi dua vao hang doi gui).
+    List<ChatFrame> snapshot() {
+        long end = next.get();
+        long start = Math.max(tail.get(), end - capacity);
+        ArrayDeque<ChatFrame> frames = new ArrayDeque<>();
+        long total = 0;
+        for (long seq = end - 1; seq >= start; seq--) {
+            int index = (int) (seq & mask);
+            ChatFrame entry = slots.get(index);
+            if (entry == null || entry.historySeq != seq) {
+                // chua ghi xong thi bo qua; da bi ghi de boi frame moi hon thi dung
+                if (entry != null && entry.historySeq > seq) break;
+                continue;
+            }
+            total += entry.historyBytes;
+            if (total > maxBytes) break;
+            // vua bi bo ra khoi vong va tra ve pool
+            if (!entry.tryRetain()) continue;
+            if (slots.get(index) != entry || entry.historySeq != seq) {
+                // frame da duoc dung lai cho message khac (co the o phong khac) giua hai lan doc;
+                // dang giu tham chieu nen neu con trong o nay thi no khong doi nua
+                entry.release();
+                continue;
+            }
+            frames.addFirst(entry);
+        }
+        return new ArrayList<>(frames);
+    }
+
+    long bytes() {
+        return bytes.get();
+    }
+}
@@ -5,11 +5,14 @@
 package DoQuang;
 
 import DoQuang.*;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import javax.swing.JOptionPane;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.nio.file.Paths;
+import java.util.concurrent.Future;
 import javax.swing.SwingUtilities;
 /**
  *
@@ -19,7 +22,7 @@ public class HostGUI extends javax.swing.JFrame implements ServerChatListener {
 
     
     ChatServer server;
-    Thread serverThread;
+    Future<?> serverTask;
     Timer timer;
     
     public HostGUI() 
@@ -63,6 +66,8 @@ public class HostGUI extends javax.swing.JFrame implements ServerChatListener {
         lblIPaddress = new javax.swing.JLabel();
         jLabel4 = new javax.swing.JLabel();
         lblConns = new javax.swing.JLabel();
+        jLabel5 = new javax.swing.JLabel();
+        lblMetrics = new javax.swing.JLabel();
         jPanel2 = new javax.swing.JPanel();
         jLabel1 = new javax.swing.JLabel();
         txtPort = new javax.swing.JTextField();
@@ -70,7 +75,8 @@ public class HostGUI extends javax.swing.JFrame implements ServerChatListener {
         btnStop = new javax.swing.JButton();
         pnlChat = new javax.swing.JPanel();
         jScrollPane1 = new javax.swing.JScrollPane();
-        txtaChatHistory = new javax.swing.JTextArea();
+        lstChatHistory = new DoQuang.ChatView();
+        pnlSearch = new DoQuang.SearchPanel();
 
         setDefaultCloseOperation(javax.swing.WindowConstants.EXIT_ON_CLOSE);
         setTitle("HOST");
@@ -94,6 +100,12 @@ public class HostGUI extends javax.swing.JFrame implements ServerChatListener {
         lblConns.setFont(new java.awt.Font("Segoe UI", 0, 14)); // NOI18N
         lblConns.setText("0");
 
+        jLabel5.setFont(new java.awt.Font("Segoe UI", 0, 14)); // NOI18N
+        jLabel5.setText("Thong ke:");
+
+        lblMetrics.setFont(new java.awt.Font("Segoe UI", 0, 12)); // NOI18N
+        lblMetrics.setText("<html>-<br>-<br>-<br>-</html>");
+
         javax.swing.GroupLayout jPanel1Layout = new javax.swing.GroupLayout(jPanel1);
         jPanel1.setLayout(jPanel1Layout);
         jPanel1Layout.setHorizontalGroup(
@@ -103,12 +115,14 @@ public class HostGUI extends javax.swing.JFrame implements ServerChatListener {
                 .addGroup(jPanel1Layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
                     .addComponent(jLabel2)
                     .addComponent(jLabel4)
-                    .addComponent(jLabel3))
+                    .addComponent(jLabel3)
+                    .addComponent(jLabel5))
                 .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
                 .addGroup(jPanel1Layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
                     .addComponent(lblIPaddress)
                     .addComponent(lblStatus)
-                    .addComponent(lblConns))
+                    .addComponent(lblConns)
+                    .addComponent(lblMetrics))
                 .addContainerGap(110, Short.MAX_VALUE))
         );
         jPanel1Layout.setVerticalGroup(
@@ -125,7 +139,11 @@ public class HostGUI extends javax.swing.JFrame implements ServerChatListener {
                 .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
                 .addGroup(jPanel1Layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
                     .addComponent(lblConns)
-                    .addComponent(jLabel3)))
+                    .addComponent(jLabel3))
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addGroup(jPanel1Layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
+                    .addComponent(jLabel5)
+                    .addComponent(lblMetrics)))
         );
 
         jLabel1.setFont(new java.awt.Font("Segoe UI", 0, 14)); // NOI18N
@@ -181,9 +199,7 @@ public class HostGUI extends javax.swing.JFrame implements ServerChatListener {
                 .addGap(14, 14, 14))
         );
 
-        txtaChatHistory.setColumns(20);
-        txtaChatHistory.setRows(5);
-        jScrollPane1.setViewportView(txtaChatHistory);
+        jScrollPane1.setViewportView(lstChatHistory);
 
         javax.swing.GroupLayout pnlChatLayout = new javax.swing.GroupLayout(pnlChat);
         pnlChat.setLayout(pnlChatLayout);
@@ -191,7 +207,9 @@ public class HostGUI extends javax.swing.JFrame implements ServerChatListener {
             pnlChatLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
             .addGroup(pnlChatLayout.createSequentialGroup()
                 .addContainerGap()
-                .addComponent(jScrollPane1)
+                .addGroup(pnlChatLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
+                    .addComponent(jScrollPane1)
+                    .addComponent(pnlSearch, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE))
                 .addContainerGap())
         );
         pnlChatLayout.setVerticalGroup(
@@ -199,6 +217,8 @@ public class HostGUI extends javax.swing.JFrame implements ServerChatListener {
             .addGroup(pnlChatLayout.createSequentialGroup()
                 .addContainerGap()
                 .addComponent(jScrollPane1, javax.swing.GroupLayout.DEFAULT_SIZE, 285, Short.MAX_VALUE)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.UNRELATED)
+                .addComponent(pnlSearch, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
                 .addContainerGap())
         );
 
@@ -249,9 +269,19 @@ public class HostGUI extends javax.swing.JFrame implements ServerChatListener {
         
         int port = Integer.valueOf(txtPort.getText());        
         server = new ChatServer(port);      
-        serverThread = new Thread(() -> server.start());
+        try {
+            server.setChatLog(new ChatLog(Paths.get("chat-history", Integer.toString(port))));
+        } catch (IOException e) {
+            System.err.println("Khong the mo lich su chat: " + e.getMessage());
+        }
+        // Chay nhu node cluster: -Dchat.cluster.peers=host:7001,host:7002 [-Dchat.cluster.port=...]
+        String clusterPeers = System.getProperty("chat.cluster.peers");
+        if (clusterPeers != null) {
+            server.setCluster(Integer.getInteger("chat.cluster.port", port + 1000), clusterPeers);
+        }
         server.addServerChatListener(this);
-        serverThread.start();
+        pnlSearch.setServer(server);
+        serverTask = ChatExecutors.shared().submit(() -> server.start());
         btnStart.setEnabled(false);
         btnStop.setVisible(true);
         pnlChat.setVisible(true);
@@ -263,7 +293,8 @@ public class HostGUI extends javax.swing.JFrame implements ServerChatListener {
     private void btnStopActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_btnStopActionPerformed
         if(server != null){
             server.stop();
-            serverThread.interrupt();
+            serverTask.cancel(true);
+            pnlSearch.setServer(null);
             btnStart.setEnabled(true);
             btnStop.setVisible(false);
             pnlChat.setVisible(false);
@@ -279,17 +310,29 @@ public class HostGUI extends javax.swing.JFrame implements ServerChatListener {
         timer.scheduleAtFixedRate(new TimerTask() {
             @Override
             public void run() {
-                lblConns.setText(Integer.toString(server.getConnectedClients()));
+                ServerMetrics.Snapshot metrics = server.getMetrics();
+                SwingUtilities.invokeLater(() -> {
+                    lblConns.setText(metrics.activeConnections + " (tong " + metrics.totalConnections + ")");
+                    lblMetrics.setText(String.format("<html>Tin nhan: vao %d, ra %d<br>Byte: vao %d, ra %d<br>"
+                            + "Hang doi: %d frame (max %d), bo %d, ngat %d<br>"
+                            + "Broadcast p50/p99: %d/%d us, cho gui p99: %d us</html>",
+                            metrics.messagesIn, metrics.messagesOut, metrics.bytesIn, metrics.bytesOut,
+                            metrics.queuedFrames, metrics.maxQueueDepth, metrics.droppedMessages, metrics.slowConsumerDisconnects,
+                            metrics.broadcastP50Nanos / 1000, metrics.broadcastP99Nanos / 1000, metrics.queueTimeP99Nanos / 1000));
+                });
             }
         }, 0, 1000); // Chạy mỗi 1 giây (1000ms)
     
     }
     
+    private static String roomPrefix(ChatMessage message) {
+        String room = message.getRoom();
+        return room == null || room.equals(RoomRegistry.DEFAULT_ROOM) ? "" : "[" + room + "] ";
+    }
+
     @Override
     public void onMessageReceived(ChatMessage message) {
-        SwingUtilities.invokeLater(() -> {
-            txtaChatHistory.append(message.getSender() + ": " + message.getMessage() + "\n");
-        });
+        lstChatHistory.append(roomPrefix(message) + message.getSender() + ": " + message.getMessage());
     }
     /**
      * @param args the command line arguments
@@ -336,14 +379,17 @@ public class HostGUI extends javax.swing.JFrame implements ServerChatListener {
     private javax.swing.JLabel jLabel2;
     private javax.swing.JLabel jLabel3;
     private javax.swing.JLabel jLabel4;
+    private javax.swing.JLabel jLabel5;
     private javax.swing.JPanel jPanel1;
     private javax.swing.JPanel jPanel2;
     private javax.swing.JScrollPane jScrollPane1;
     private javax.swing.JLabel lblConns;
     private javax.swing.JLabel lblIPaddress;
+    private javax.swing.JLabel lblMetrics;
     private javax.swing.JLabel lblStatus;
     private javax.swing.JPanel pnlChat;
+    private DoQuang.SearchPanel pnlSearch;
     private javax.swing.JTextField txtPort;
-    private javax.swing.JTextArea txtaChatHistory;
+    private DoQuang.ChatView lstChatHistory;
     // End of variables declaration//GEN-END:variables
 }
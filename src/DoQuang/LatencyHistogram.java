@@ -0,0 +1,80 @@
+package DoQuang;
+
+import java.util.concurrent.atomic.*;
+
+// Histogram do tre (nano giay) kieu log-linear: moi khoang [2^k, 2^(k+1)) chia thanh 32 o,
+// sai so tuong doi toi da ~3%. Ghi khong khoa, nhieu thread cung record duoc.
+final class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        counts.incrementAndGet(index(nanos));
+        total.increment();
+        sum.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    long count() {
+        return total.sum();
+    }
+
+    long max() {
+        return max.get();
+    }
+
+    double mean() {
+        long n = total.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    // Gia tri lon nhat cua o chua phan vi p (0..100)
+    long percentile(double p) {
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) n += counts.get(i);
+        if (n == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(p / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(upperBound(i), max.get());
+        }
+        return max.get();
+    }
+
+    // So mau nho hon value (theo do phan giai cua o)
+    long countBelow(long value) {
+        long n = 0;
+        for (int i = 0; i < BUCKETS && upperBound(i) < value; i++) {
+            n += counts.get(i);
+        }
+        return n;
+    }
+
+    void reset() {
+        for (int i = 0; i < BUCKETS; i++) counts.set(i, 0);
+        total.reset();
+        sum.reset();
+        max.reset();
+    }
+
+    private static int index(long value) {
+        if (value < SUB_COUNT * 2) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return shift * SUB_COUNT + (int) (value >>> shift);
+    }
+
+    private static long upperBound(int index) {
+        if (index < SUB_COUNT * 2) return index;
+        int shift = index / SUB_COUNT - 1;
+        long sub = index - shift * SUB_COUNT;
+        return ((sub + 1) << shift) - 1;
+    }
+}
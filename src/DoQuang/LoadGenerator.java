@@ -0,0 +1,191 @@
+package DoQuang;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+// Tao tai cho ChatServer ma khong can giao dien: mo nhieu ChatClient, gui voi toc do dat truoc
+// va do do tre tu luc gui toi luc moi client khac nhan duoc (fan-out latency).
+// Moi message mang san thoi diem gui nen tat ca client phai chay trong cung JVM nay.
+//   java -cp dist/DoAnUDChat.jar DoQuang.LoadGenerator connections=2000 rate=500 payload=64,512 duration=30
+//   java -cp dist/DoAnUDChat.jar DoQuang.LoadGenerator server=nio connections=500 rate=200
+//   java -cp dist/DoAnUDChat.jar DoQuang.LoadGenerator server=nio nodes=3 connections=300 rate=200
+// Tham so (key=value):
+//   host, port          server can do (mac dinh localhost:5999)
+//   server              none | blocking | nio: tu chay mot ChatServer trong JVM nay (mac dinh none)
+//   nodes               voi server=...: chay cluster gom nhieu node tren port, port+1, ...
+//                       (relay port = port+1000+i), client chia vong tron cho cac node (mac dinh 1)
+//   connections         so ket noi (mac dinh 100)
+//   rate                tong so message/giay cua tat ca ket noi (mac dinh 100)
+//   payload             kich thuoc noi dung, nhieu gia tri thi dung luan phien (mac dinh 64)
+//   duration, warmup    thoi gian do va thoi gian chay truoc khi do, tinh bang giay (mac dinh 30, 5)
+//   codec               binary | legacy (mac dinh binary)
+public class LoadGenerator {
+    private static final String TAG = "LG ";
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder receivedBytes = new LongAdder();
+    // chi tinh message gui tu thoi diem nay (bo message cua luc warmup con dang tren duong)
+    private volatile long measureFrom;
+    private volatile boolean measuring;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("Expected key=value: " + arg);
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        new LoadGenerator().run(options);
+        System.exit(0);
+    }
+
+    private void run(Map<String, String> options) throws Exception {
+        String host = options.getOrDefault("host", "localhost");
+        int port = Integer.parseInt(options.getOrDefault("port", "5999"));
+        String serverMode = options.getOrDefault("server", "none");
+        int connections = Integer.parseInt(options.getOrDefault("connections", "100"));
+        double rate = Double.parseDouble(options.getOrDefault("rate", "100"));
+        int duration = Integer.parseInt(options.getOrDefault("duration", "30"));
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "5"));
+        ChatCodec codec = ChatCodecs.byName(options.getOrDefault("codec", "binary"));
+        if (connections < 2 || rate <= 0) {
+            throw new IllegalArgumentException("Invalid connections or rate");
+        }
+        String[] padding = Arrays.stream(options.getOrDefault("payload", "64").split(","))
+                .map(size -> "x".repeat(Integer.parseInt(size.trim())))
+                .toArray(String[]::new);
+
+        int nodes = Integer.parseInt(options.getOrDefault("nodes", "1"));
+        List<ChatServer> servers = new ArrayList<>();
+        if (!serverMode.equals("none")) {
+            for (int i = 0; i < nodes; i++) {
+                ChatServer server = new ChatServer(port + i, ChatServer.IoMode.valueOf(serverMode.toUpperCase()));
+                server.setHistoryBackfill(0, 1);
+                if (nodes > 1) {
+                    StringBuilder peers = new StringBuilder();
+                    for (int j = 0; j < nodes; j++) {
+                        if (j != i) peers.append("localhost:").append(port + 1000 + j).append(',');
+                    }
+                    server.setCluster(port + 1000 + i, peers.toString());
+                }
+                Thread serverThread = new Thread(server::start, "load-server-" + i);
+                serverThread.setDaemon(true);
+                serverThread.start();
+                servers.add(server);
+            }
+            Thread.sleep(nodes > 1 ? 1500 : 500);
+        }
+
+        // Moi client doc tren mot virtual thread de mo duoc hang nghin ket noi
+        ExecutorService readers = ChatExecutors.create(ChatExecutors.Mode.VIRTUAL);
+        List<ChatClient> clients = new ArrayList<>(connections);
+        for (int i = 0; i < connections; i++) {
+            int id = i;
+            ChatClient client = new ChatClient(host, port + i % Math.max(1, servers.size()), message -> onReceived(id, message), readers);
+            client.setCodecs(codec);
+            client.connect();
+            if (client.getCodec() == null) {
+                System.out.println("Connection " + i + " failed, stopping at " + clients.size() + " connections");
+                break;
+            }
+            clients.add(client);
+        }
+        if (clients.size() < 2) {
+            throw new IllegalStateException("Need at least 2 connections");
+        }
+        System.out.printf("connections=%d rate=%.0f msg/s payload=%s codec=%s%n",
+                clients.size(), rate, options.getOrDefault("payload", "64"), codec.name());
+
+        long sentBefore = pace(clients, padding, rate, TimeUnit.SECONDS.toNanos(warmup), 0);
+        long started = System.nanoTime();
+        measureFrom = started;
+        measuring = true;
+        long sent = pace(clients, padding, rate, TimeUnit.SECONDS.toNanos(duration), sentBefore);
+        long elapsed = System.nanoTime() - started;
+        // cho cac message cuoi cung toi noi
+        Thread.sleep(2000);
+        measuring = false;
+
+        report(clients.size(), sent, elapsed);
+        for (ChatServer server : servers) {
+            System.out.println("server: " + server.getMetrics());
+        }
+        for (ChatClient client : clients) {
+            client.disconnect();
+        }
+        for (ChatServer server : servers) {
+            server.stop();
+        }
+        readers.shutdownNow();
+    }
+
+    // Gui tong cong rate message/giay, luan phien giua cac client, trong durationNanos.
+    // Thoi diem ghi vao message la thoi diem dang le phai gui, nen neu bi tre thi do tre
+    // do cung duoc tinh (tranh coordinated omission).
+    private long pace(List<ChatClient> clients, String[] padding, double rate, long durationNanos, long seq) {
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        long start = System.nanoTime();
+        long end = start + durationNanos;
+        long sent = 0;
+        for (long next = start; next < end; next += interval, seq++) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            int id = (int) (seq % clients.size());
+            String body = TAG + id + " " + next + " " + padding[(int) (seq % padding.length)];
+            clients.get(id).sendMessage("lg-" + id, body);
+            sent++;
+        }
+        return sent;
+    }
+
+    private void onReceived(int receiverId, ChatMessage message) {
+        String body = message.getMessage();
+        if (body == null || !body.startsWith(TAG)) return;
+        long now = System.nanoTime();
+        int idEnd = body.indexOf(' ', TAG.length());
+        int timeEnd = body.indexOf(' ', idEnd + 1);
+        if (idEnd < 0 || timeEnd < 0) return;
+        // chi tinh client khac, khong tinh ban sao gui ve chinh nguoi gui
+        if (Integer.parseInt(body.substring(TAG.length(), idEnd)) == receiverId) return;
+        long sentAt = Long.parseLong(body.substring(idEnd + 1, timeEnd));
+        if (!measuring || sentAt - measureFrom < 0) return;
+        latency.record(now - sentAt);
+        received.increment();
+        receivedBytes.add(body.length());
+    }
+
+    private void report(int connections, long sent, long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        long expected = sent * (connections - 1);
+        long delivered = received.sum();
+        System.out.printf("sent: %d messages, %.0f msg/s%n", sent, sent / seconds);
+        System.out.printf("delivered: %d of %d expected (%.2f%%), %.0f msg/s, %.2f MB/s%n",
+                delivered, expected, expected == 0 ? 0 : 100.0 * delivered / expected,
+                delivered / seconds, receivedBytes.sum() / seconds / (1024 * 1024));
+        System.out.printf("latency (us): mean=%.0f p50=%d p90=%d p99=%d p99.9=%d max=%d%n",
+                latency.mean() / 1000, micros(50), micros(90), micros(99), micros(99.9), latency.max() / 1000);
+
+        long total = latency.count();
+        if (total == 0) return;
+        System.out.println("histogram:");
+        long below = 0;
+        for (long bound = 64_000; below < total; bound <<= 1) {
+            long count = latency.countBelow(bound) - below;
+            below += count;
+            if (count == 0 && below == 0) continue;
+            int bar = (int) (50 * count / total);
+            System.out.printf("  < %8d us %10d %6.2f%% %s%n", bound / 1000, count, 100.0 * count / total, "#".repeat(bar));
+        }
+    }
+
+    private long micros(double percentile) {
+        return latency.percentile(percentile) / 1000;
+    }
+}
@@ -0,0 +1,80 @@
+package DoQuang;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Doc tai cho mot frame CHAT binary cua client (khong seq, khong nguoi nhan) ma khong tao
+// ChatMessage hay String: duong relay doc -> broadcast -> ghi cua server. Moi ket noi dung lai
+// mot MessageView cho moi frame, chi thread doc cua ket noi do dung.
+// Ten phong duoc nho theo byte nhan duoc, client gui lien tiep vao cung phong thi khong giai ma lai.
+// relay() chep sender, phong va noi dung vao bo dem cua BufferPool kem seq, ra mot ChatFrame
+// co dem tham chieu giong het frame ma BinaryChatCodec ma hoa; ca bo dem lan ChatFrame deu
+// duoc dung lai nen o trang thai on dinh relay mot message khong tao doi tuong nao.
+final class MessageView {
+    private ByteBuffer payload;
+    private int senderAt;
+    private int senderLength;
+    private int roomAt;
+    private int roomLength;
+    private int bodyAt;
+    private int bodyLength;
+    // phong cua frame truoc: byte nhan duoc, ten (null neu khong hop le) va ban UTF-8 de ghi ra
+    private byte[] roomKey;
+    private String roomName;
+    private byte[] roomBytes;
+
+    // false neu khong phai frame CHAT thuong, khi do dung codec.decode()
+    boolean parse(ByteBuffer payload) {
+        int at = payload.position();
+        int end = payload.limit();
+        if (end - at < 5 || payload.get(at) != BinaryChatCodec.TYPE_CHAT) return false;
+        senderAt = at + 3;
+        senderLength = payload.getShort(at + 1) & 0xFFFF;
+        int roomLengthAt = senderAt + senderLength;
+        if (roomLengthAt + 2 > end) return false;
+        roomAt = roomLengthAt + 2;
+        roomLength = payload.getShort(roomLengthAt) & 0xFFFF;
+        bodyAt = roomAt + roomLength;
+        if (bodyAt > end) return false;
+        bodyLength = end - bodyAt;
+        this.payload = payload;
+        return true;
+    }
+
+    // Phong cua frame vua parse (rong la phong mac dinh), null neu ten khong hop le
+    String room() {
+        if (!sameRoom()) {
+            byte[] key = new byte[roomLength];
+            payload.get(roomAt, key);
+            String name = key.length == 0 ? RoomRegistry.DEFAULT_ROOM : new String(key, StandardCharsets.UTF_8);
+            roomKey = key;
+            roomName = RoomRegistry.isValidName(name) ? name : null;
+            roomBytes = name.getBytes(StandardCharsets.UTF_8);
+        }
+        return roomName;
+    }
+
+    private boolean sameRoom() {
+        if (roomKey == null || roomKey.length != roomLength) return false;
+        for (int i = 0; i < roomLength; i++) {
+            if (payload.get(roomAt + i) != roomKey[i]) return false;
+        }
+        return true;
+    }
+
+    // Frame broadcast [do dai][CHAT|SEQ_FLAG][seq][sender][phong][noi dung]; goi sau room()
+    ChatFrame relay(long seq) throws IOException {
+        int length = 1 + 8 + 2 + senderLength + 2 + roomBytes.length + bodyLength;
+        ChatCodecs.checkLength(length);
+        ByteBuffer frame = BufferPool.SHARED.acquire(4 + length);
+        frame.putInt(0, length).put(4, (byte) (BinaryChatCodec.TYPE_CHAT | BinaryChatCodec.SEQ_FLAG))
+                .putLong(5, seq).putShort(13, (short) senderLength);
+        frame.put(15, payload, senderAt, senderLength);
+        int at = 15 + senderLength;
+        frame.putShort(at, (short) roomBytes.length).put(at + 2, roomBytes);
+        at += 2 + roomBytes.length;
+        frame.put(at, payload, bodyAt, bodyLength);
+        return ChatFrame.relay(frame, seq, roomName);
+    }
+}
@@ -0,0 +1,474 @@
+package DoQuang;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Server NIO nhieu reactor: mot event loop chi de accept, va N worker moi worker
+// so huu socket va hang doi gui cua cac ket noi duoc chia vong tron cho no.
+class NioServerTransport implements Closeable {
+    private final ChatServer server;
+    private final ServerSocketChannel serverChannel;
+    private final NioEventLoop acceptor;
+    private final NioWorker[] workers;
+    // chi thread acceptor dung
+    private int nextWorker;
+
+    NioServerTransport(ChatServer server, int port, int workerCount) throws IOException {
+        this.server = server;
+        this.acceptor = new NioEventLoop("chat-nio-acceptor");
+        this.workers = new NioWorker[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new NioWorker("chat-nio-" + i);
+        }
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        acceptor.register(serverChannel, SelectionKey.OP_ACCEPT, key -> accept());
+    }
+
+    // Acceptor chay tren thread hien tai, moi worker chay tren thread rieng
+    void run() {
+        for (NioWorker worker : workers) {
+            Thread thread = new Thread(worker, worker.getName());
+            thread.setDaemon(true);
+            thread.start();
+        }
+        acceptor.run();
+    }
+
+    private void accept() {
+        SocketChannel channel;
+        try {
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                ChatEvents.accepted(channel, ChatServer.IoMode.NIO);
+                NioWorker worker = workers[nextWorker];
+                nextWorker = (nextWorker + 1) % workers.length;
+                ChannelClientHandler client = new ChannelClientHandler(server, channel, worker);
+                worker.execute(client::open);
+            }
+        } catch (IOException e) {
+            if (server.isRunning()) e.printStackTrace();
+        }
+    }
+
+    // Moi worker nhan mot task cho ca frame, thay vi mot task cho moi ket noi.
+    // Worker giu mot tham chieu toi frame cho toi khi phat xong.
+    void broadcast(ChatFrame frame) {
+        for (NioWorker worker : workers) {
+            worker.broadcast(frame);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverChannel.close();
+        acceptor.shutdown();
+        for (NioWorker worker : workers) {
+            worker.shutdown();
+        }
+    }
+}
+
+interface SelectionHandler {
+    void onSelected(SelectionKey key) throws IOException;
+}
+
+class NioEventLoop implements Runnable {
+    private final String name;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile Thread thread;
+    private volatile boolean running = true;
+
+    NioEventLoop(String name) throws IOException {
+        this.name = name;
+        this.selector = Selector.open();
+    }
+
+    String getName() {
+        return name;
+    }
+
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (!inEventLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    SelectionKey register(SelectableChannel channel, int ops, SelectionHandler handler) throws ClosedChannelException {
+        return channel.register(selector, ops, handler);
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        try {
+            while (running) {
+                selector.select();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) continue;
+                    try {
+                        ((SelectionHandler) key.attachment()).onSelected(key);
+                    } catch (IOException | CancelledKeyException e) {
+                        key.cancel();
+                        key.channel().close();
+                    }
+                }
+                runTasks();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            runTasks();
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
+
+// Event loop worker: giu danh sach ket noi cua minh de phat broadcast ma khong
+// can task cho tung ket noi. Danh sach chi duoc doc/ghi tren thread cua worker.
+// Frame broadcast cho trong mot hang doi mang (khong cap phat khi them), mot task phat ca loat.
+class NioWorker extends NioEventLoop {
+    static final int BROADCAST_QUEUE = 4096;
+
+    private final Set<ChannelClientHandler> connections = new HashSet<>();
+    private final ArrayBlockingQueue<ChatFrame> broadcasts = new ArrayBlockingQueue<>(BROADCAST_QUEUE);
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final Runnable drainTask = this::drainBroadcasts;
+    // so frame dang phat bang task rieng vi hang doi day; khac 0 thi frame moi cung di duong do
+    // de giu thu tu
+    private final AtomicInteger overflow = new AtomicInteger();
+
+    NioWorker(String name) throws IOException {
+        super(name);
+    }
+
+    void broadcast(ChatFrame frame) {
+        frame.retain();
+        if (overflow.get() > 0 || !broadcasts.offer(frame)) {
+            overflow.incrementAndGet();
+            execute(() -> {
+                drainBroadcasts();
+                deliver(frame);
+                frame.release();
+                overflow.decrementAndGet();
+            });
+            return;
+        }
+        if (drainScheduled.compareAndSet(false, true)) {
+            execute(drainTask);
+        }
+    }
+
+    private void drainBroadcasts() {
+        drainScheduled.set(false);
+        ChatFrame frame;
+        while ((frame = broadcasts.poll()) != null) {
+            deliver(frame);
+            frame.release();
+        }
+    }
+
+    void add(ChannelClientHandler client) {
+        connections.add(client);
+    }
+
+    void remove(ChannelClientHandler client) {
+        connections.remove(client);
+    }
+
+    // Dua frame vao hang doi cua cac ket noi thuoc phong (room null: tat ca);
+    // flush duoc hen sau task nay nen nhieu broadcast lien tiep van gom thanh mot lan ghi
+    private void deliver(ChatFrame frame) {
+        String room = frame.room();
+        for (ChannelClientHandler client : connections) {
+            if (room == null || client.rooms.contains(room)) {
+                client.send(frame);
+            }
+        }
+    }
+}
+
+// Mot ket noi NIO, moi thao tac voi channel deu chay tren worker so huu no
+class ChannelClientHandler extends ChatServer.ClientHandler implements SelectionHandler {
+    static final int READ_BUFFER_BYTES = 8192;
+
+    private final SocketChannel channel;
+    private final NioWorker loop;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final Runnable flushTask = () -> {
+        flushScheduled.set(false);
+        flush();
+    };
+    // bo dem doc direct lay tu BufferPool (tra lai khi dong), payload la view dung lai cho moi frame
+    private ByteBuffer readBuffer = BufferPool.SHARED.acquire(READ_BUFFER_BYTES).clear();
+    private ByteBuffer payload = readBuffer.duplicate();
+    // cac frame dang ghi do dang (chi event loop truy cap)
+    private final WriteBatch batch = new WriteBatch(256);
+    private SelectionKey key;
+    private final String remoteAddress;
+    // lan ghi dang bi nghen (cho OP_WRITE) va kich thuoc batch luc bat dau nghen
+    private ChatEvents.SlowWrite stall;
+    private int stallFrames;
+    private long stallBytes;
+    // dang tam ngung doc vi vuot gioi han toc do (chi event loop truy cap)
+    private boolean readPaused;
+
+    ChannelClientHandler(ChatServer server, SocketChannel channel, NioWorker loop) {
+        super(server);
+        this.channel = channel;
+        this.loop = loop;
+        this.remoteAddress = String.valueOf(channel.socket().getRemoteSocketAddress());
+    }
+
+    void open() {
+        try {
+            key = loop.register(channel, SelectionKey.OP_READ, this);
+            loop.add(this);
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    // Event loop cua client khong the vua cho vua ghi hang doi cua chinh no
+    @Override
+    protected boolean canBlockSender() {
+        return !loop.inEventLoop();
+    }
+
+    // Ke ca khi dang o event loop cung khong ghi ngay: flush chay sau khi loop xu ly
+    // xong cac key cua vong select nay, nen cac message doc cung luc duoc gom thanh mot lan ghi
+    @Override
+    protected void frameQueued() {
+        if (closed.get()) return;
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(flushTask);
+        }
+    }
+
+    // Bo OP_READ cho toi khi het thoi gian cho; cac frame da nam trong readBuffer cung doi
+    @Override
+    protected void pauseReading(long nanos) {
+        readPaused = true;
+        if (key != null && key.isValid()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+        ChatExecutors.scheduler().schedule(() -> loop.execute(this::resumeReading), nanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void resumeReading() {
+        if (closed.get()) return;
+        readPaused = false;
+        try {
+            readBuffer.flip();
+            process();
+            if (!readPaused && key.isValid()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        } catch (IOException | RuntimeException e) {
+            setDisconnectReason("read error: " + e.getMessage());
+            doClose();
+        }
+    }
+
+    private int readOps() {
+        return readPaused ? 0 : SelectionKey.OP_READ;
+    }
+
+    @Override
+    public void close() {
+        if (loop.inEventLoop()) {
+            doClose();
+        } else {
+            loop.execute(this::doClose);
+        }
+    }
+
+    @Override
+    public void onSelected(SelectionKey key) {
+        try {
+            if (key.isReadable()) {
+                read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                flush();
+            }
+        } catch (IOException e) {
+            setDisconnectReason((codec == null ? "handshake error: " : "read error: ") + e.getMessage());
+            doClose();
+        }
+    }
+
+    private void read() throws IOException {
+        int n = channel.read(readBuffer);
+        if (n < 0) {
+            setDisconnectReason(codec == null ? "closed during handshake" : "closed by client");
+            doClose();
+            return;
+        }
+        server.metrics.bytesIn.add(n);
+        readBuffer.flip();
+        if (codec == null && !handshake()) {
+            readBuffer.compact();
+            return;
+        }
+        process();
+    }
+
+    // Xu ly cac frame day du trong readBuffer (dang o che do doc), roi compact
+    private void process() throws IOException {
+        while (readBuffer.remaining() >= 4) {
+            int length = readBuffer.getInt(readBuffer.position());
+            ChatCodecs.checkLength(length);
+            if (readBuffer.remaining() < 4 + length) {
+                if (4 + length > readBuffer.capacity()) {
+                    ByteBuffer larger = BufferPool.SHARED.acquire(4 + length).clear();
+                    larger.put(readBuffer);
+                    BufferPool.SHARED.release(readBuffer);
+                    readBuffer = larger;
+                    payload = readBuffer.duplicate();
+                    return;
+                }
+                break;
+            }
+            int start = readBuffer.position() + 4;
+            payload.limit(start + length).position(start);
+            readBuffer.position(start + length);
+            received(payload);
+            if (closed.get()) return;
+            if (readPaused) break;
+        }
+        readBuffer.compact();
+    }
+
+    // Bat tay chon codec; tra ve false neu chua nhan du loi chao
+    private boolean handshake() throws IOException {
+        byte[] offered = ChatCodecs.parseHello(readBuffer);
+        if (offered == null) return false;
+        ChatCodec chosen = ChatCodecs.choose(offered, server.getCodecs());
+        batch.add(ChatCodecs.helloReply(chosen));
+        codec = chosen;
+        handshakeDone();
+        flush();
+        server.clientConnected(this, ChatCodecs.resuming(offered));
+        return true;
+    }
+
+    private void flush() {
+        if (key == null || !key.isValid()) return;
+        try {
+            int maxBytes = server.getMaxBatchBytes();
+            while (true) {
+                // khuc file dang ghi do phai ghi xong truoc moi frame khac;
+                // ngoai ra frame chat luon duoc ghi truoc khuc file tiep theo
+                FileSend file = fileSends.peek();
+                if (file == null || !file.inChunk()) {
+                    ChatFrame frame;
+                    while (!batch.isFull(maxBytes) && (frame = outbound.poll()) != null) {
+                        dequeued(frame, batch);
+                    }
+                    if (!batch.isEmpty()) {
+                        if (!write(batch, channel)) {
+                            stalled();
+                            return;
+                        }
+                        continue;
+                    }
+                    if (file == null) break;
+                }
+                server.metrics.bytesOut.add(file.write(channel));
+                if (file.inChunk()) {
+                    stalled();
+                    return;
+                }
+                if (file.done()) fileSends.poll();
+            }
+            if (stall != null) {
+                slowWrite(stall, stallFrames, stallBytes);
+                stall = null;
+            }
+            key.interestOps(readOps());
+        } catch (IOException e) {
+            setDisconnectReason("write error: " + e.getMessage());
+            doClose();
+        }
+    }
+
+    // Socket day: cho OP_WRITE roi ghi tiep
+    private void stalled() {
+        if (stall == null) {
+            stall = new ChatEvents.SlowWrite();
+            stall.begin();
+            stallFrames = batch.frames();
+            stallBytes = batch.bytes();
+        }
+        key.interestOps(readOps() | SelectionKey.OP_WRITE);
+    }
+
+    private void doClose() {
+        if (!closed.compareAndSet(false, true)) return;
+        loop.remove(this);
+        flush();
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        server.clientDisconnected(this);
+        outbound.clear();
+        clearFileSends();
+        batch.clear();
+        BufferPool.SHARED.release(readBuffer);
+    }
+}
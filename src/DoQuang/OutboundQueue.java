@@ -0,0 +1,112 @@
+package DoQuang;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Hang doi gui co gioi han cua mot client. Thread broadcast chi dua frame vao day,
+// writer rieng cua client lay ra va ghi xuong socket.
+// Hang doi giu mot tham chieu toi moi frame (ChatFrame.retain); frame lay ra bang poll/take
+// thi tham chieu chuyen cho nguoi lay, frame bi bo hoac clear() thi duoc release.
+final class OutboundQueue {
+    // Xu ly khi hang doi day:
+    // DROP_OLDEST bo frame cu nhat, DISCONNECT ngat client cham,
+    // BLOCK cho toi da blockTimeout roi ngat client
+    public enum OverflowPolicy { DROP_OLDEST, DISCONNECT, BLOCK }
+
+    // Frame rong chi de danh thuc writer dang cho trong take(), vd. khi co file can gui
+    static final ChatFrame WAKEUP = new ChatFrame(null);
+
+    private final ArrayBlockingQueue<ChatFrame> queue;
+    private final OverflowPolicy policy;
+    private final long blockTimeoutMillis;
+    private final AtomicLong dropped = new AtomicLong();
+    // tong so frame bi bo cua ca server
+    private final LongAdder droppedTotal;
+
+    OutboundQueue(int capacity, OverflowPolicy policy, long blockTimeoutMillis, LongAdder droppedTotal) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.policy = policy;
+        this.blockTimeoutMillis = blockTimeoutMillis;
+        this.droppedTotal = droppedTotal;
+    }
+
+    // Tra ve false neu client qua cham va can bi ngat ket noi.
+    // mayBlock = false khi thread goi chinh la thread phai lay frame ra (vd. event loop NIO cua client).
+    boolean offer(ChatFrame frame, boolean mayBlock) {
+        frame.retain();
+        if (queue.offer(frame)) return true;
+        switch (policy) {
+            case DROP_OLDEST:
+                do {
+                    ChatFrame oldest = queue.poll();
+                    // WAKEUP khong phai message: bo di khong tinh la drop
+                    if (oldest != null && oldest != WAKEUP) {
+                        oldest.release();
+                        drop();
+                    }
+                } while (!queue.offer(frame));
+                return true;
+            case BLOCK:
+                if (mayBlock) {
+                    try {
+                        if (queue.offer(frame, blockTimeoutMillis, TimeUnit.MILLISECONDS)) return true;
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                break;
+        }
+        frame.release();
+        drop();
+        return false;
+    }
+
+    private void drop() {
+        dropped.incrementAndGet();
+        droppedTotal.increment();
+    }
+
+    // Hang doi dang rong thi them WAKEUP; khong rong thi writer cung se thuc day
+    void wakeup() {
+        if (queue.isEmpty()) {
+            queue.offer(WAKEUP);
+        }
+    }
+
+    ChatFrame poll() {
+        ChatFrame frame;
+        do {
+            frame = queue.poll();
+        } while (frame == WAKEUP);
+        return frame;
+    }
+
+    ChatFrame poll(long timeoutNanos) throws InterruptedException {
+        ChatFrame frame = queue.poll(timeoutNanos, TimeUnit.NANOSECONDS);
+        return frame == WAKEUP ? poll() : frame;
+    }
+
+    // Co the tra ve WAKEUP
+    ChatFrame take() throws InterruptedException {
+        return queue.take();
+    }
+
+    int size() {
+        return queue.size();
+    }
+
+    int capacity() {
+        return queue.size() + queue.remainingCapacity();
+    }
+
+    long dropped() {
+        return dropped.get();
+    }
+
+    void clear() {
+        ChatFrame frame;
+        while ((frame = queue.poll()) != null) {
+            frame.release();
+        }
+    }
+}
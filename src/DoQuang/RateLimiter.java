@@ -0,0 +1,68 @@
+package DoQuang;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Token bucket theo so message va so byte, khong dung lock. Moi bucket chi la mot AtomicLong:
+// thoi diem ma bucket se day lai (GCRA). Lay n token = day moc nay them n * thoi gian moi token;
+// vuot qua now + burst nghia la het token. Mot limiter rieng cho moi client (chi thread doc
+// cua client do dung) va mot limiter chung cua server cho moi thread doc.
+final class RateLimiter {
+    // Xu ly message vuot gioi han:
+    // DELAY van nhan message nhung ngung doc client cho toi khi du token (TCP tu day lai phia client),
+    // DROP bo message, DISCONNECT ngat client
+    public enum Action { DELAY, DROP, DISCONNECT }
+
+    private final Bucket messages;
+    private final Bucket bytes;
+
+    // rate <= 0 la khong gioi han chieu do; burst la so message / so byte gui lien duoc
+    RateLimiter(double messagesPerSecond, int messageBurst, long bytesPerSecond, long byteBurst) {
+        this.messages = messagesPerSecond > 0 ? new Bucket(messagesPerSecond, messageBurst) : null;
+        this.bytes = bytesPerSecond > 0 ? new Bucket(bytesPerSecond, byteBurst) : null;
+    }
+
+    // Lay token cho mot message size byte. Tra ve 0 neu du token, nguoc lai so nano giay con thieu.
+    // reserve = true thi van lay token khi thieu (message se duoc xu ly sau khoang cho tra ve),
+    // false thi khong lay gi.
+    long acquire(int size, boolean reserve) {
+        long now = System.nanoTime();
+        long wait = messages == null ? 0 : messages.take(1, now, reserve);
+        if (wait > 0 && !reserve) return wait;
+        long byteWait = bytes == null ? 0 : bytes.take(size, now, reserve);
+        if (byteWait > 0 && !reserve && messages != null) {
+            messages.refund(1);
+        }
+        return Math.max(wait, byteWait);
+    }
+
+    private static final class Bucket {
+        private final double nanosPerToken;
+        private final long tolerance;
+        private final AtomicLong full = new AtomicLong(Long.MIN_VALUE);
+
+        Bucket(double perSecond, long burst) {
+            if (burst < 1) {
+                throw new IllegalArgumentException("burst must be >= 1");
+            }
+            this.nanosPerToken = TimeUnit.SECONDS.toNanos(1) / perSecond;
+            this.tolerance = (long) (nanosPerToken * burst);
+        }
+
+        long take(long tokens, long now, boolean reserve) {
+            long cost = (long) (nanosPerToken * tokens);
+            while (true) {
+                long current = full.get();
+                long next = (current == Long.MIN_VALUE || current - now < 0 ? now : current) + cost;
+                // message lon hon burst chi can bucket dang day
+                long wait = next - now - Math.max(tolerance, cost);
+                if (wait > 0 && !reserve) return wait;
+                if (full.compareAndSet(current, next)) return Math.max(0, wait);
+            }
+        }
+
+        void refund(long tokens) {
+            full.addAndGet(-(long) (nanosPerToken * tokens));
+        }
+    }
+}
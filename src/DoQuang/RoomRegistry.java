@@ -0,0 +1,65 @@
+package DoQuang;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+// Chi muc phong -> cac client dang o trong phong.
+// Moi thay doi cua mot phong chay trong compute() cua ConcurrentHashMap nen phong rong
+// duoc xoa ma khong lam mat client vua vao cung luc.
+final class RoomRegistry {
+    static final String DEFAULT_ROOM = "lobby";
+    static final int MAX_ROOM_NAME = 64;
+
+    private final ConcurrentHashMap<String, Set<ChatServer.ClientHandler>> rooms = new ConcurrentHashMap<>();
+
+    static boolean isValidName(String room) {
+        return room != null && !room.isBlank() && room.length() <= MAX_ROOM_NAME;
+    }
+
+    boolean join(String room, ChatServer.ClientHandler client) {
+        boolean[] added = new boolean[1];
+        rooms.compute(room, (name, members) -> {
+            if (members == null) members = ConcurrentHashMap.newKeySet();
+            added[0] = members.add(client);
+            return members;
+        });
+        if (added[0]) client.rooms.add(room);
+        return added[0];
+    }
+
+    boolean leave(String room, ChatServer.ClientHandler client) {
+        boolean[] removed = new boolean[1];
+        rooms.computeIfPresent(room, (name, members) -> {
+            removed[0] = members.remove(client);
+            return members.isEmpty() ? null : members;
+        });
+        client.rooms.remove(room);
+        return removed[0];
+    }
+
+    void leaveAll(ChatServer.ClientHandler client) {
+        for (String room : client.rooms) {
+            leave(room, client);
+        }
+    }
+
+    boolean isMember(String room, ChatServer.ClientHandler client) {
+        Set<ChatServer.ClientHandler> members = rooms.get(room);
+        return members != null && members.contains(client);
+    }
+
+    Set<ChatServer.ClientHandler> members(String room) {
+        return rooms.getOrDefault(room, Collections.emptySet());
+    }
+
+    // Ten phong va so thanh vien
+    Map<String, Integer> snapshot() {
+        Map<String, Integer> sizes = new TreeMap<>();
+        rooms.forEach((room, members) -> sizes.put(room, members.size()));
+        return sizes;
+    }
+
+    void clear() {
+        rooms.clear();
+    }
+}
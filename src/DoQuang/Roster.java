@@ -0,0 +1,239 @@
+package DoQuang;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Danh sach nickname dang online cua server, co so phien ban.
+// Client gui NICK (sender = nickname) de vao roster va nhan mot snapshot ROSTER "S <version>\nnick\n..."
+// (roster lon thi chia nhieu frame, cac frame sau bat dau bang "s <version>"). Sau do chi nhan delta
+// "D <version>\n+nick\n-nick\n~cu<TAB>moi", moi delta tang version len 1.
+// Thay doi trong BATCH_MILLIS duoc gom thanh mot delta va triet tieu nhau (vao roi ra ngay thi
+// khong gui gi), nen mot dot nhieu ket noi chi ton vai frame cho moi client.
+// Client thay version nhay coc thi gui ROSTER (khong noi dung) de xin snapshot moi.
+// Mot nickname dung tren nhieu ket noi chi tinh mot lan. Roster chi cua node nay, khong qua cluster.
+// Index nickname -> ket noi doc duoc khong can khoa (connections()), dung cho tin rieng.
+// Frame duoc dung trong khoa cua Roster roi xep vao outbox; gui ngoai khoa, theo dung thu tu va
+// khong bao gio cho hang doi cua client (trySend), nen client cham khong giu khoa hay scheduler.
+final class Roster {
+    static final long BATCH_MILLIS = 200;
+    static final int MAX_NICK_LENGTH = 64;
+    // giu moi frame duoi ChatCodecs.MAX_FRAME_SIZE ke ca khi moi ky tu la 3 byte UTF-8:
+    // delta nhieu thay doi hon thi gui ngay, snapshot dai hon thi chia frame
+    static final int MAX_DELTA_CHANGES = 2048;
+    static final int MAX_SNAPSHOT_CHARS = 64 * 1024;
+
+    // cac ket noi dang dung moi nickname, cap nhat ngay (chi sua khi giu khoa cua Roster)
+    private final ConcurrentHashMap<String, Set<ChatServer.ClientHandler>> online = new ConcurrentHashMap<>();
+    // roster tai version hien tai (chua tinh thay doi dang gom), dung cho snapshot
+    private final SortedSet<String> committed = new TreeSet<>();
+    // thay doi dang gom theo nickname: "+", "-" hoac "~" + ten cu
+    private final LinkedHashMap<String, String> changes = new LinkedHashMap<>();
+    // client da co nickname, nhan delta
+    private final Set<ChatServer.ClientHandler> subscribers = new HashSet<>();
+    private long version;
+    private boolean flushScheduled;
+    // frame cho gui, xep trong khoa nen dung thu tu version; chi mot thread gui mot luc
+    private final ConcurrentLinkedQueue<Outgoing> outbox = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean sending = new AtomicBoolean();
+
+    private static final class Outgoing {
+        final ChatFrame frame;
+        final Collection<ChatServer.ClientHandler> recipients;
+
+        Outgoing(ChatFrame frame, Collection<ChatServer.ClientHandler> recipients) {
+            this.frame = frame;
+            this.recipients = recipients;
+        }
+    }
+
+    static boolean isValidNick(String nick) {
+        if (nick == null || nick.isBlank() || nick.length() > MAX_NICK_LENGTH) return false;
+        for (int i = 0; i < nick.length(); i++) {
+            if (Character.isISOControl(nick.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    // NICK tu client: vao roster lan dau (kem snapshot) hoac doi ten
+    void setNick(ChatServer.ClientHandler client, String nick) {
+        synchronized (this) {
+            changeNick(client, nick);
+        }
+        send();
+    }
+
+    private void changeNick(ChatServer.ClientHandler client, String nick) {
+        String old = client.nickname;
+        if (nick.equals(old)) return;
+        client.nickname = nick;
+        if (old == null) {
+            subscribers.add(client);
+            queueSnapshot(client);
+            if (increment(nick, client)) added(nick);
+        } else {
+            boolean left = decrement(old, client);
+            boolean joined = increment(nick, client);
+            if (left && joined) {
+                renamed(old, nick);
+            } else if (left) {
+                removed(old);
+            } else if (joined) {
+                added(nick);
+            }
+        }
+        scheduleFlush();
+    }
+
+    void remove(ChatServer.ClientHandler client) {
+        synchronized (this) {
+            if (!subscribers.remove(client)) return;
+            if (decrement(client.nickname, client)) {
+                removed(client.nickname);
+                scheduleFlush();
+            }
+        }
+        send();
+    }
+
+    // Snapshot tai version hien tai; delta dang gom se toi sau voi version + 1
+    void sendSnapshot(ChatServer.ClientHandler client) {
+        synchronized (this) {
+            queueSnapshot(client);
+        }
+        send();
+    }
+
+    private void queueSnapshot(ChatServer.ClientHandler client) {
+        List<ChatServer.ClientHandler> recipient = Collections.singletonList(client);
+        StringBuilder body = new StringBuilder("S ").append(version);
+        for (String nick : committed) {
+            if (body.length() + nick.length() >= MAX_SNAPSHOT_CHARS) {
+                outbox.add(new Outgoing(frame(body), recipient));
+                body.setLength(0);
+                body.append("s ").append(version);
+            }
+            body.append('\n').append(nick);
+        }
+        outbox.add(new Outgoing(frame(body), recipient));
+    }
+
+    synchronized List<String> snapshot() {
+        return new ArrayList<>(committed);
+    }
+
+    // Cac ket noi dang dung nickname, rong neu offline. O(1), goi tu bat ky thread nao.
+    Set<ChatServer.ClientHandler> connections(String nick) {
+        Set<ChatServer.ClientHandler> connections = online.get(nick);
+        return connections == null ? Collections.emptySet() : connections;
+    }
+
+    // true neu nickname vua online
+    private boolean increment(String nick, ChatServer.ClientHandler client) {
+        Set<ChatServer.ClientHandler> connections = online.computeIfAbsent(nick, key -> ConcurrentHashMap.newKeySet());
+        connections.add(client);
+        return connections.size() == 1;
+    }
+
+    // true neu nickname vua offline
+    private boolean decrement(String nick, ChatServer.ClientHandler client) {
+        Set<ChatServer.ClientHandler> connections = online.get(nick);
+        if (connections == null) return false;
+        connections.remove(client);
+        if (!connections.isEmpty()) return false;
+        online.remove(nick);
+        return true;
+    }
+
+    private void added(String nick) {
+        if ("-".equals(changes.get(nick))) {
+            changes.remove(nick);
+        } else {
+            changes.put(nick, "+");
+        }
+    }
+
+    private void removed(String nick) {
+        String change = changes.remove(nick);
+        if (change == null) {
+            changes.put(nick, "-");
+        } else if (change.charAt(0) == '~') {
+            // doi ten roi ra trong cung dot: ten cu coi nhu ra
+            removed(change.substring(1));
+        }
+    }
+
+    private void renamed(String old, String nick) {
+        String change = changes.remove(old);
+        if ("+".equals(change)) {
+            added(nick);
+        } else if (change != null && change.charAt(0) == '~') {
+            if (!change.substring(1).equals(nick)) changes.put(nick, change);
+        } else {
+            changes.put(nick, "~" + old);
+        }
+    }
+
+    private void scheduleFlush() {
+        if (changes.size() >= MAX_DELTA_CHANGES) {
+            flush();
+        } else if (!flushScheduled && !changes.isEmpty()) {
+            flushScheduled = true;
+            ChatExecutors.scheduler().schedule(() -> {
+                synchronized (this) {
+                    flushScheduled = false;
+                    flush();
+                }
+                send();
+            }, BATCH_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Ma hoa delta mot lan, moi subscriber chi nhan view cua cung frame. Goi khi giu khoa.
+    private void flush() {
+        if (changes.isEmpty()) return;
+        StringBuilder body = new StringBuilder("D ").append(++version);
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            String nick = change.getKey();
+            String op = change.getValue();
+            body.append('\n');
+            if (op.charAt(0) == '~') {
+                String old = op.substring(1);
+                committed.remove(old);
+                committed.add(nick);
+                body.append('~').append(old).append('\t').append(nick);
+            } else if (op.equals("+")) {
+                committed.add(nick);
+                body.append('+').append(nick);
+            } else {
+                committed.remove(nick);
+                body.append('-').append(nick);
+            }
+        }
+        changes.clear();
+        outbox.add(new Outgoing(frame(body), new ArrayList<>(subscribers)));
+    }
+
+    private static ChatFrame frame(StringBuilder body) {
+        return new ChatFrame(new ChatMessage(ChatMessage.Type.ROSTER, "Server", null, body.toString()));
+    }
+
+    // Gui outbox ngoai khoa. Thread khac dang gui thi no se gui ca frame vua xep.
+    // trySend co the ngat client cham, remove() tu do goi lai day va chi xep them frame.
+    private void send() {
+        while (!outbox.isEmpty() && sending.compareAndSet(false, true)) {
+            try {
+                Outgoing outgoing;
+                while ((outgoing = outbox.poll()) != null) {
+                    for (ChatServer.ClientHandler client : outgoing.recipients) {
+                        client.trySend(outgoing.frame);
+                    }
+                }
+            } finally {
+                sending.set(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,345 @@
+package DoQuang;
+
+import java.io.*;
+import java.text.Normalizer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+// Chi muc toan van (inverted index) tren ChatLog, cap nhat dan theo log. Moi ban ghi log la mot
+// tai lieu, ID la offset cua no trong log.
+// - Tu trong noi dung (chu thuong, bo dau: "Tiếng" -> "tieng") va nguoi gui -> posting list cac offset
+//   tang dan, luu delta + varint nen thuong 1-2 byte moi muc.
+// - Thoi gian: moi BUCKET_MILLIS nho offset dau tien cua khoang do; log ghi theo thu tu thoi gian
+//   nen khoang thoi gian doi ra khoang offset, thoi gian chinh xac kiem tra khi doc ban ghi.
+// Truy van AND cac tu va nguoi gui: giai ma posting list ngan nhat trong khoang offset roi loc qua
+// cac list con lai, lay tu moi nhat ve cu va chi doc tu log cac ban ghi tra ve.
+// Index nam trong bo nho: dung tu log khi start() (tren executor), theo sau log moi REFRESH_MILLIS
+// va truoc moi truy van. Scheduler chi kiem tra log co ban ghi moi, viec index chay tren executor
+// va lan kiem tra sau duoc hen khi no xong. Log xoa segment cu (retention) qua nua phan da index
+// thi dung lai tu dau.
+final class SearchIndex implements Closeable {
+    static final long BUCKET_MILLIS = 60_000;
+    static final long REFRESH_MILLIS = 1000;
+    static final int MAX_TERM_LENGTH = 32;
+    static final int MAX_LIMIT = 1000;
+    private static final int BATCH = 4096;
+
+    // Dieu kien tim kiem; text va sender null/rong la khong loc, khoang thoi gian tinh bang epoch millis
+    static final class Query {
+        final String text;
+        final String sender;
+        final long fromMillis;
+        final long toMillis;
+        final int limit;
+
+        Query(String text, String sender, long fromMillis, long toMillis, int limit) {
+            if (limit < 1 || fromMillis > toMillis) {
+                throw new IllegalArgumentException("Invalid search query");
+            }
+            this.text = text;
+            this.sender = sender;
+            this.fromMillis = fromMillis;
+            this.toMillis = toMillis;
+            this.limit = Math.min(limit, MAX_LIMIT);
+        }
+    }
+
+    static final class Hit {
+        public final long offset;
+        public final long timestamp;
+        public final ChatMessage message;
+
+        Hit(long offset, long timestamp, ChatMessage message) {
+            this.offset = offset;
+            this.timestamp = timestamp;
+            this.message = message;
+        }
+    }
+
+    // Offset tang dan, moi muc la khoang cach toi muc truoc dang varint
+    private static final class Postings {
+        private byte[] data = new byte[8];
+        private int size;
+        private long last = -1;
+        private int count;
+
+        void add(long offset) {
+            if (offset == last) return;
+            long delta = last < 0 ? offset : offset - last;
+            if (size + 10 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            while ((delta & ~0x7FL) != 0) {
+                data[size++] = (byte) ((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+            data[size++] = (byte) delta;
+            last = offset;
+            count++;
+        }
+
+        // Cac offset trong [from, to)
+        long[] decode(long from, long to) {
+            long[] offsets = new long[count];
+            int n = 0;
+            long offset = 0;
+            for (int pos = 0; pos < size; ) {
+                long delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[pos++];
+                    delta |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                offset += delta;
+                if (offset >= to) break;
+                if (offset >= from) offsets[n++] = offset;
+            }
+            return Arrays.copyOf(offsets, n);
+        }
+
+        // Giu lai cac offset (tang dan) co trong list nay, tra ve so offset con lai
+        int retain(long[] offsets, int n) {
+            int kept = 0;
+            int i = 0;
+            long offset = 0;
+            for (int pos = 0; pos < size && i < n; ) {
+                long delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[pos++];
+                    delta |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                offset += delta;
+                while (i < n && offsets[i] < offset) i++;
+                if (i < n && offsets[i] == offset) offsets[kept++] = offsets[i++];
+            }
+            return kept;
+        }
+    }
+
+    private static final class Doc {
+        final long offset;
+        final long timestamp;
+        final Set<String> terms;
+        final String sender;
+
+        Doc(long offset, long timestamp, Set<String> terms, String sender) {
+            this.offset = offset;
+            this.timestamp = timestamp;
+            this.terms = terms;
+            this.sender = sender;
+        }
+    }
+
+    private final ChatLog log;
+    // ghi khi refresh, doc khi truy van
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Object refreshLock = new Object();
+    private final Map<String, Postings> terms = new HashMap<>();
+    private final Map<String, Postings> senders = new HashMap<>();
+    // khoang thoi gian (millis / BUCKET_MILLIS) -> offset dau tien
+    private final TreeMap<Long, Long> buckets = new TreeMap<>();
+    private long baseOffset;
+    private volatile long indexedUntil;
+    private ExecutorService executor;
+    private volatile ScheduledFuture<?> refresher;
+    private volatile boolean closed;
+
+    SearchIndex(ChatLog log) {
+        this.log = log;
+        this.baseOffset = indexedUntil = log.firstOffset();
+    }
+
+    // Dung index tu log tren executor roi tiep tuc theo sau log
+    void start(ExecutorService executor) {
+        this.executor = executor;
+        scheduleRefresh(0);
+    }
+
+    // Moi luc chi co mot lan hen hoac mot lan refresh dang chay
+    private void scheduleRefresh(long delayMillis) {
+        if (closed) return;
+        refresher = ChatExecutors.scheduler().schedule(() -> {
+            if (closed) return;
+            if (indexedUntil < log.nextOffset()) {
+                executor.execute(this::backgroundRefresh);
+            } else {
+                scheduleRefresh(REFRESH_MILLIS);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void backgroundRefresh() {
+        try {
+            refresh();
+        } catch (IOException e) {
+            // lan refresh dang chay khi server dung va dong log
+            if (!closed) e.printStackTrace();
+        } finally {
+            scheduleRefresh(REFRESH_MILLIS);
+        }
+    }
+
+    long indexedMessages() {
+        return indexedUntil - baseOffset;
+    }
+
+    // Index cac ban ghi moi cua log
+    void refresh() throws IOException {
+        synchronized (refreshLock) {
+            long first = log.firstOffset();
+            if (first > baseOffset && (first - baseOffset) * 2 > indexedUntil - baseOffset) {
+                lock.writeLock().lock();
+                try {
+                    terms.clear();
+                    senders.clear();
+                    buckets.clear();
+                    baseOffset = indexedUntil = first;
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+            while (indexedUntil < log.nextOffset()) {
+                // doc va tach tu ngoai khoa, truy van van chay trong luc do
+                List<Doc> docs = new ArrayList<>();
+                int read = log.replayRecords(indexedUntil, BATCH, (offset, timestamp, payload) -> {
+                    ChatMessage message = ChatCodecs.BINARY.decode(payload);
+                    docs.add(new Doc(offset, timestamp, tokens(message.getMessage()),
+                            message.getSender() == null ? null : fold(message.getSender())));
+                });
+                if (read == 0) break;
+                lock.writeLock().lock();
+                try {
+                    for (Doc doc : docs) {
+                        for (String term : doc.terms) {
+                            terms.computeIfAbsent(term, key -> new Postings()).add(doc.offset);
+                        }
+                        if (doc.sender != null) {
+                            senders.computeIfAbsent(doc.sender, key -> new Postings()).add(doc.offset);
+                        }
+                        buckets.putIfAbsent(doc.timestamp / BUCKET_MILLIS, doc.offset);
+                    }
+                    indexedUntil = docs.get(docs.size() - 1).offset + 1;
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+        }
+    }
+
+    // Ket qua moi nhat truoc
+    List<Hit> search(Query query) throws IOException {
+        refresh();
+        long[] candidates = null;
+        int n = 0;
+        long from;
+        long to;
+        lock.readLock().lock();
+        try {
+            List<Postings> lists = new ArrayList<>();
+            for (String term : tokens(query.text)) {
+                Postings postings = terms.get(term);
+                if (postings == null) return Collections.emptyList();
+                lists.add(postings);
+            }
+            if (query.sender != null && !query.sender.isBlank()) {
+                Postings postings = senders.get(fold(query.sender.trim()));
+                if (postings == null) return Collections.emptyList();
+                lists.add(postings);
+            }
+            from = Math.max(baseOffset, log.firstOffset());
+            to = indexedUntil;
+            if (query.fromMillis > Long.MIN_VALUE) {
+                Map.Entry<Long, Long> bucket = buckets.ceilingEntry(Math.floorDiv(query.fromMillis, BUCKET_MILLIS));
+                if (bucket == null) return Collections.emptyList();
+                from = Math.max(from, bucket.getValue());
+            }
+            if (query.toMillis < Long.MAX_VALUE) {
+                Map.Entry<Long, Long> bucket = buckets.higherEntry(Math.floorDiv(query.toMillis, BUCKET_MILLIS));
+                if (bucket != null) to = Math.min(to, bucket.getValue());
+            }
+            if (!lists.isEmpty()) {
+                lists.sort(Comparator.comparingInt(postings -> postings.count));
+                candidates = lists.get(0).decode(from, to);
+                n = candidates.length;
+                for (int i = 1; i < lists.size() && n > 0; i++) {
+                    n = lists.get(i).retain(candidates, n);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        List<Hit> hits = new ArrayList<>();
+        if (candidates == null) {
+            // khong co tu nao: moi offset trong khoang, doc tung doan limit ban ghi tu cuoi ve
+            for (long end = to; end > from && hits.size() < query.limit; ) {
+                long start = Math.max(from, end - query.limit);
+                long windowEnd = end;
+                List<Hit> window = new ArrayList<>();
+                log.replayRecords(start, (int) (end - start), (recorded, timestamp, payload) -> {
+                    if (recorded < windowEnd && timestamp >= query.fromMillis && timestamp <= query.toMillis) {
+                        window.add(new Hit(recorded, timestamp, ChatCodecs.BINARY.decode(payload)));
+                    }
+                });
+                for (int i = window.size() - 1; i >= 0 && hits.size() < query.limit; i--) {
+                    hits.add(window.get(i));
+                }
+                end = start;
+            }
+            return hits;
+        }
+        for (int i = n - 1; i >= 0 && hits.size() < query.limit; i--) {
+            long target = candidates[i];
+            log.replayRecords(target, 1, (recorded, timestamp, payload) -> {
+                if (recorded == target && timestamp >= query.fromMillis && timestamp <= query.toMillis) {
+                    hits.add(new Hit(recorded, timestamp, ChatCodecs.BINARY.decode(payload)));
+                }
+            });
+        }
+        return hits;
+    }
+
+    // Cac tu khac nhau trong text, da fold
+    static Set<String> tokens(String text) {
+        Set<String> tokens = new LinkedHashSet<>();
+        if (text == null) return tokens;
+        String folded = fold(text);
+        int start = -1;
+        for (int i = 0; i <= folded.length(); i++) {
+            boolean word = i < folded.length() && Character.isLetterOrDigit(folded.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                tokens.add(folded.substring(start, Math.min(i, start + MAX_TERM_LENGTH)));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    // Chu thuong, bo dau tieng Viet: "Đà Nẵng" -> "da nang"
+    static String fold(String text) {
+        String decomposed = Normalizer.normalize(text.toLowerCase(Locale.ROOT), Normalizer.Form.NFD);
+        StringBuilder folded = new StringBuilder(decomposed.length());
+        for (int i = 0; i < decomposed.length(); i++) {
+            char c = decomposed.charAt(i);
+            if (Character.getType(c) == Character.NON_SPACING_MARK) continue;
+            folded.append(c == 'đ' ? 'd' : c);
+        }
+        return folded.toString();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        ScheduledFuture<?> current = refresher;
+        if (current != null) {
+            current.cancel(false);
+        }
+    }
+}
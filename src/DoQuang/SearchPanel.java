@@ -0,0 +1,100 @@
+package DoQuang;
+
+import java.awt.BorderLayout;
+import java.awt.FlowLayout;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.swing.*;
+
+// O tim kiem lich su chat cho HostGUI: cac tu can tim, nguoi gui va khoang thoi gian.
+// Truy van chay tren ChatExecutors.shared() (SearchIndex co the phai doc log), ket qua dua ve EDT.
+public class SearchPanel extends JPanel {
+    static final int RESULT_LIMIT = 200;
+    private static final String[] RANGES = {"Tat ca", "1 gio qua", "24 gio qua", "7 ngay qua"};
+    private static final long[] RANGE_MILLIS = {0, TimeUnit.HOURS.toMillis(1), TimeUnit.DAYS.toMillis(1), TimeUnit.DAYS.toMillis(7)};
+
+    private final JTextField txtQuery = new JTextField(16);
+    private final JTextField txtSender = new JTextField(8);
+    private final JComboBox<String> cboRange = new JComboBox<>(RANGES);
+    private final JButton btnSearch = new JButton("Tim");
+    private final JLabel lblResult = new JLabel(" ");
+    private final DefaultListModel<String> results = new DefaultListModel<>();
+    private volatile ChatServer server;
+
+    public SearchPanel() {
+        super(new BorderLayout(0, 4));
+        JPanel fields = new JPanel(new FlowLayout(FlowLayout.LEADING, 4, 0));
+        fields.add(new JLabel("Tim:"));
+        fields.add(txtQuery);
+        fields.add(new JLabel("Nguoi gui:"));
+        fields.add(txtSender);
+        fields.add(cboRange);
+        fields.add(btnSearch);
+        JList<String> lstResults = new JList<>(results);
+        lstResults.setVisibleRowCount(6);
+        lstResults.setPrototypeCellValue("00/00 00:00 nguoi gui: noi dung tin nhan");
+        add(fields, BorderLayout.NORTH);
+        add(new JScrollPane(lstResults), BorderLayout.CENTER);
+        add(lblResult, BorderLayout.SOUTH);
+        btnSearch.addActionListener(e -> search());
+        txtQuery.addActionListener(e -> search());
+        txtSender.addActionListener(e -> search());
+    }
+
+    // null khi server dung
+    void setServer(ChatServer server) {
+        this.server = server;
+        results.clear();
+        lblResult.setText(" ");
+    }
+
+    private void search() {
+        ChatServer current = server;
+        if (current == null) return;
+        if (current.getChatLog() == null) {
+            lblResult.setText("Server khong luu lich su chat");
+            return;
+        }
+        String text = txtQuery.getText();
+        String sender = txtSender.getText();
+        long range = RANGE_MILLIS[cboRange.getSelectedIndex()];
+        long from = range == 0 ? Long.MIN_VALUE : System.currentTimeMillis() - range;
+        btnSearch.setEnabled(false);
+        ChatExecutors.shared().execute(() -> {
+            long start = System.nanoTime();
+            List<SearchIndex.Hit> hits;
+            try {
+                hits = current.search(text, sender, from, Long.MAX_VALUE, RESULT_LIMIT);
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+                SwingUtilities.invokeLater(() -> {
+                    btnSearch.setEnabled(true);
+                    lblResult.setText("Loi tim kiem: " + e.getMessage());
+                });
+                return;
+            }
+            long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+            SwingUtilities.invokeLater(() -> {
+                btnSearch.setEnabled(true);
+                results.clear();
+                SimpleDateFormat format = new SimpleDateFormat("dd/MM HH:mm");
+                for (SearchIndex.Hit hit : hits) {
+                    results.addElement(format.format(new Date(hit.timestamp)) + " " + describe(hit.message));
+                }
+                lblResult.setText(hits.size() + " ket qua (" + micros / 1000.0 + " ms)");
+            });
+        });
+    }
+
+    private static String describe(ChatMessage message) {
+        if (message.getRecipient() != null) {
+            return "[rieng] " + message.getSender() + " -> " + message.getRecipient() + ": " + message.getMessage();
+        }
+        String room = message.getRoom();
+        String prefix = room == null || room.equals(RoomRegistry.DEFAULT_ROOM) ? "" : "[" + room + "] ";
+        return prefix + message.getSender() + ": " + message.getMessage();
+    }
+}
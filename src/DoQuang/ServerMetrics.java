@@ -0,0 +1,308 @@
+package DoQuang;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.*;
+
+// So lieu cua ChatServer. Cac thread client chi cong vao LongAdder/histogram, khong khoa;
+// snapshot() va JMX doc tong tai thoi diem goi.
+final class ServerMetrics implements ServerMetricsMBean {
+    final LongAdder totalConnections = new LongAdder();
+    final LongAdder messagesIn = new LongAdder();
+    final LongAdder messagesOut = new LongAdder();
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    // cong don so frame bi bo cua moi OutboundQueue
+    final LongAdder dropped = new LongAdder();
+    final LongAdder slowConsumers = new LongAdder();
+    // client bi ngat vi khong nhan duoc gi trong idle timeout (ket noi nua mo)
+    final LongAdder idleDisconnects = new LongAdder();
+    // message vuot gioi han toc do (bi cho hoac bi bo) va so client bi ngat vi gioi han
+    final LongAdder rateLimited = new LongAdder();
+    final LongAdder rateLimitDisconnects = new LongAdder();
+    // file nhan du vao spool va so lan gui file cho client
+    final LongAdder filesReceived = new LongAdder();
+    final LongAdder filesSent = new LongAdder();
+    // tin rieng da chuyen (khong tinh tin bi tra loi vi nguoi nhan offline)
+    final LongAdder directMessages = new LongAdder();
+    // cluster: message gui/nhan qua link relay, ID trung bi bo, message bo khi hang doi link day
+    final LongAdder relayOut = new LongAdder();
+    final LongAdder relayIn = new LongAdder();
+    final LongAdder relayDuplicates = new LongAdder();
+    final LongAdder relayDropped = new LongAdder();
+    // thoi gian mot lan broadcast(): ma hoa, ghi log, dua vao hang doi cua moi nguoi nhan
+    final LatencyHistogram broadcastTime = new LatencyHistogram();
+    // tu luc broadcast tao frame toi luc writer cua client lay frame ra de ghi
+    final LatencyHistogram queueTime = new LatencyHistogram();
+
+    private final ChatServer server;
+    private ObjectName name;
+
+    ServerMetrics(ChatServer server) {
+        this.server = server;
+    }
+
+    // Gia tri tai mot thoi diem, dung cho giao dien va log
+    static final class Snapshot {
+        public final int activeConnections;
+        public final long totalConnections;
+        public final long messagesIn;
+        public final long messagesOut;
+        public final long bytesIn;
+        public final long bytesOut;
+        public final long queuedFrames;
+        public final int maxQueueDepth;
+        public final long droppedMessages;
+        public final long slowConsumerDisconnects;
+        public final long idleDisconnects;
+        public final long rateLimited;
+        public final long rateLimitDisconnects;
+        public final long filesReceived;
+        public final long filesSent;
+        public final long directMessages;
+        public final long relayOut;
+        public final long relayIn;
+        public final long relayDuplicates;
+        public final long relayDropped;
+        public final long broadcastP50Nanos;
+        public final long broadcastP99Nanos;
+        public final long broadcastMaxNanos;
+        public final long queueTimeP50Nanos;
+        public final long queueTimeP99Nanos;
+        public final long queueTimeMaxNanos;
+
+        private Snapshot(ServerMetrics metrics) {
+            this.activeConnections = metrics.server.getConnectedClients();
+            this.totalConnections = metrics.totalConnections.sum();
+            this.messagesIn = metrics.messagesIn.sum();
+            this.messagesOut = metrics.messagesOut.sum();
+            this.bytesIn = metrics.bytesIn.sum();
+            this.bytesOut = metrics.bytesOut.sum();
+            this.queuedFrames = metrics.getQueuedFrames();
+            this.maxQueueDepth = metrics.getMaxQueueDepth();
+            this.droppedMessages = metrics.dropped.sum();
+            this.slowConsumerDisconnects = metrics.slowConsumers.sum();
+            this.idleDisconnects = metrics.idleDisconnects.sum();
+            this.rateLimited = metrics.rateLimited.sum();
+            this.rateLimitDisconnects = metrics.rateLimitDisconnects.sum();
+            this.filesReceived = metrics.filesReceived.sum();
+            this.filesSent = metrics.filesSent.sum();
+            this.directMessages = metrics.directMessages.sum();
+            this.relayOut = metrics.relayOut.sum();
+            this.relayIn = metrics.relayIn.sum();
+            this.relayDuplicates = metrics.relayDuplicates.sum();
+            this.relayDropped = metrics.relayDropped.sum();
+            this.broadcastP50Nanos = metrics.broadcastTime.percentile(50);
+            this.broadcastP99Nanos = metrics.broadcastTime.percentile(99);
+            this.broadcastMaxNanos = metrics.broadcastTime.max();
+            this.queueTimeP50Nanos = metrics.queueTime.percentile(50);
+            this.queueTimeP99Nanos = metrics.queueTime.percentile(99);
+            this.queueTimeMaxNanos = metrics.queueTime.max();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("connections=%d/%d in=%d msg/%d B out=%d msg/%d B queued=%d (max %d) dropped=%d slow=%d idle=%d"
+                    + " limited=%d limit-disconnects=%d files in=%d out=%d dm=%d"
+                    + " relay out=%d in=%d dup=%d dropped=%d"
+                    + " broadcast p50/p99=%d/%d us queue p50/p99=%d/%d us",
+                    activeConnections, totalConnections, messagesIn, bytesIn, messagesOut, bytesOut,
+                    queuedFrames, maxQueueDepth, droppedMessages, slowConsumerDisconnects, idleDisconnects,
+                    rateLimited, rateLimitDisconnects, filesReceived, filesSent, directMessages,
+                    relayOut, relayIn, relayDuplicates, relayDropped,
+                    broadcastP50Nanos / 1000, broadcastP99Nanos / 1000, queueTimeP50Nanos / 1000, queueTimeP99Nanos / 1000);
+        }
+    }
+
+    Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    // Dem byte doc tu socket o che do blocking
+    InputStream countingInput(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) bytesIn.increment();
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int n = super.read(buffer, offset, length);
+                if (n > 0) bytesIn.add(n);
+                return n;
+            }
+        };
+    }
+
+    void register(int port) {
+        try {
+            name = new ObjectName("DoQuang:type=ChatServer,port=" + port);
+            MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+            if (mbeans.isRegistered(name)) {
+                mbeans.unregisterMBean(name);
+            }
+            mbeans.registerMBean(this, name);
+        } catch (JMException e) {
+            System.out.println("Khong the dang ky JMX: " + e.getMessage());
+            name = null;
+        }
+    }
+
+    void unregister() {
+        if (name == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            // da go
+        }
+        name = null;
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return server.getConnectedClients();
+    }
+
+    @Override
+    public long getTotalConnections() {
+        return totalConnections.sum();
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getQueuedFrames() {
+        long queued = 0;
+        for (ChatServer.ClientHandler client : server.clientHandlers()) {
+            queued += client.getQueueDepth();
+        }
+        return queued;
+    }
+
+    @Override
+    public int getMaxQueueDepth() {
+        int max = 0;
+        for (ChatServer.ClientHandler client : server.clientHandlers()) {
+            max = Math.max(max, client.getQueueDepth());
+        }
+        return max;
+    }
+
+    @Override
+    public long getDroppedMessages() {
+        return dropped.sum();
+    }
+
+    @Override
+    public long getSlowConsumerDisconnects() {
+        return slowConsumers.sum();
+    }
+
+    @Override
+    public long getIdleDisconnects() {
+        return idleDisconnects.sum();
+    }
+
+    @Override
+    public long getRateLimited() {
+        return rateLimited.sum();
+    }
+
+    @Override
+    public long getRateLimitDisconnects() {
+        return rateLimitDisconnects.sum();
+    }
+
+    @Override
+    public long getFilesReceived() {
+        return filesReceived.sum();
+    }
+
+    @Override
+    public long getFilesSent() {
+        return filesSent.sum();
+    }
+
+    @Override
+    public long getDirectMessages() {
+        return directMessages.sum();
+    }
+
+    @Override
+    public long getRelayOut() {
+        return relayOut.sum();
+    }
+
+    @Override
+    public long getRelayIn() {
+        return relayIn.sum();
+    }
+
+    @Override
+    public long getRelayDuplicates() {
+        return relayDuplicates.sum();
+    }
+
+    @Override
+    public long getRelayDropped() {
+        return relayDropped.sum();
+    }
+
+    @Override
+    public long getBroadcastP50Micros() {
+        return broadcastTime.percentile(50) / 1000;
+    }
+
+    @Override
+    public long getBroadcastP99Micros() {
+        return broadcastTime.percentile(99) / 1000;
+    }
+
+    @Override
+    public long getBroadcastMaxMicros() {
+        return broadcastTime.max() / 1000;
+    }
+
+    @Override
+    public long getQueueTimeP50Micros() {
+        return queueTime.percentile(50) / 1000;
+    }
+
+    @Override
+    public long getQueueTimeP99Micros() {
+        return queueTime.percentile(99) / 1000;
+    }
+
+    @Override
+    public long getQueueTimeMaxMicros() {
+        return queueTime.max() / 1000;
+    }
+
+    @Override
+    public void resetHistograms() {
+        broadcastTime.reset();
+        queueTime.reset();
+    }
+}
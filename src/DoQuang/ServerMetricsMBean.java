@@ -0,0 +1,33 @@
+package DoQuang;
+
+// Giao dien JMX cua ServerMetrics (ten: DoQuang:type=ChatServer,port=<port>).
+// Thoi gian tinh bang micro giay.
+public interface ServerMetricsMBean {
+    int getActiveConnections();
+    long getTotalConnections();
+    long getMessagesIn();
+    long getMessagesOut();
+    long getBytesIn();
+    long getBytesOut();
+    long getQueuedFrames();
+    int getMaxQueueDepth();
+    long getDroppedMessages();
+    long getSlowConsumerDisconnects();
+    long getIdleDisconnects();
+    long getRateLimited();
+    long getRateLimitDisconnects();
+    long getFilesReceived();
+    long getFilesSent();
+    long getDirectMessages();
+    long getRelayOut();
+    long getRelayIn();
+    long getRelayDuplicates();
+    long getRelayDropped();
+    long getBroadcastP50Micros();
+    long getBroadcastP99Micros();
+    long getBroadcastMaxMicros();
+    long getQueueTimeP50Micros();
+    long getQueueTimeP99Micros();
+    long getQueueTimeMaxMicros();
+    void resetHistograms();
+}
@@ -0,0 +1,185 @@
+package DoQuang;
+
+import java.io.Closeable;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+// Bo hen gio kieu hashed timing wheel: vong WHEEL_SIZE o, moi o la danh sach lien ket hai chieu
+// cac timeout het han trong cung mot tick (timeout xa hon mot vong thi dem so vong con lai).
+// Dat va huy la O(1) va khong khoa (chi dua vao hang doi); mot thread moi tick chi duyet mot o,
+// nen hang tram nghin timeout (vd. moi ket noi mot timeout) van re.
+// Do chinh xac la mot tick, timeout chi co the het han tre toi da mot tick, khong bao gio som.
+// Task chay tren thread cua wheel nen phai ngan (gui PING, dong socket, ...).
+final class TimerWheel implements Closeable {
+    static final long DEFAULT_TICK_MILLIS = 100;
+    static final int WHEEL_SIZE = 512;
+    // so timeout moi dat toi da chuyen vao wheel trong mot tick
+    private static final int MAX_TRANSFER_PER_TICK = 100_000;
+
+    private static final int WAITING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    // Timeout da dat; cancel() goi duoc tu bat ky thread nao
+    static final class Timeout {
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        private final TimerWheel wheel;
+        private final Runnable task;
+        // tinh tu startNanos cua wheel
+        private final long deadline;
+        private volatile int state;
+        // chi thread cua wheel dung
+        private long rounds;
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(TimerWheel wheel, Runnable task, long deadline) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        // false neu da chay hoac da huy
+        boolean cancel() {
+            if (!STATE.compareAndSet(this, WAITING, CANCELLED)) return false;
+            wheel.cancelled.add(this);
+            return true;
+        }
+
+        boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        private boolean expire() {
+            return STATE.compareAndSet(this, WAITING, EXPIRED);
+        }
+    }
+
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        Timeout remove(Timeout timeout) {
+            Timeout next = timeout.next;
+            if (timeout.prev != null) timeout.prev.next = next;
+            if (next != null) next.prev = timeout.prev;
+            if (timeout == head) head = next;
+            if (timeout == tail) tail = timeout.prev;
+            timeout.prev = timeout.next = null;
+            timeout.bucket = null;
+            return next;
+        }
+    }
+
+    private final long tickNanos;
+    private final Bucket[] buckets = new Bucket[WHEEL_SIZE];
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final long startNanos = System.nanoTime();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    TimerWheel(String name) {
+        this(name, DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    TimerWheel(String name, long tick, TimeUnit unit) {
+        this.tickNanos = unit.toNanos(tick);
+        if (tickNanos < TimeUnit.MILLISECONDS.toNanos(1)) {
+            throw new IllegalArgumentException("tick must be >= 1 ms");
+        }
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new Bucket();
+        }
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Chay task sau delay (lam tron len mot tick)
+    Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(this, task, System.nanoTime() - startNanos + Math.max(0, unit.toNanos(delay)));
+        if (!running) {
+            timeout.state = CANCELLED;
+            return timeout;
+        }
+        pending.add(timeout);
+        return timeout;
+    }
+
+    private void run() {
+        long tick = 0;
+        while (running) {
+            long sleep = tickNanos * (tick + 1) - (System.nanoTime() - startNanos);
+            if (sleep > 0) {
+                LockSupport.parkNanos(this, sleep);
+                continue;
+            }
+            removeCancelled();
+            transferPending(tick);
+            expire(buckets[(int) (tick & (WHEEL_SIZE - 1))]);
+            tick++;
+        }
+    }
+
+    private void removeCancelled() {
+        for (Timeout timeout; (timeout = cancelled.poll()) != null; ) {
+            if (timeout.bucket != null) timeout.bucket.remove(timeout);
+        }
+    }
+
+    private void transferPending(long tick) {
+        for (int i = 0; i < MAX_TRANSFER_PER_TICK; i++) {
+            Timeout timeout = pending.poll();
+            if (timeout == null) return;
+            if (timeout.isCancelled()) continue;
+            long due = timeout.deadline / tickNanos;
+            timeout.rounds = (due - tick) / WHEEL_SIZE;
+            // da qua han (dat tre hon mot tick) thi het han ngay o tick nay
+            buckets[(int) (Math.max(due, tick) & (WHEEL_SIZE - 1))].add(timeout);
+        }
+    }
+
+    private void expire(Bucket bucket) {
+        Timeout timeout = bucket.head;
+        while (timeout != null) {
+            if (timeout.rounds > 0) {
+                timeout.rounds--;
+                timeout = timeout.next;
+                continue;
+            }
+            Timeout next = bucket.remove(timeout);
+            if (timeout.expire()) {
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+            timeout = next;
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+}
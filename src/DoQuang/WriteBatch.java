@@ -0,0 +1,102 @@
+package DoQuang;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+// Gom cac frame dang cho cua mot ket noi de ghi bang mot lenh write.
+// Frame duoc chep vao mot bo dem direct lay tu BufferPool: frame chat nho nen mot lan chep re hon
+// mot view cho moi nguoi nhan, va JDK cung phai chep buffer heap sang direct truoc khi ghi.
+// Bo dem tra ve pool ngay khi ghi het, ket noi ranh khong giu bo nho.
+// Khong thread-safe: chi writer cua ket noi do dung.
+final class WriteBatch {
+    static final int INITIAL_BYTES = 4096;
+
+    private final int maxFrames;
+    private final BufferPool pool;
+    // [position, limit) la phan chua ghi, null khi rong
+    private ByteBuffer buffer;
+    private int frames;
+
+    WriteBatch(int maxFrames) {
+        this(maxFrames, BufferPool.SHARED);
+    }
+
+    WriteBatch(int maxFrames, BufferPool pool) {
+        this.maxFrames = maxFrames;
+        this.pool = pool;
+    }
+
+    boolean isEmpty() {
+        return buffer == null;
+    }
+
+    boolean isFull(int maxBytes) {
+        return frames >= maxFrames || bytes() >= maxBytes;
+    }
+
+    // So frame da them tu lan batch rong gan nhat
+    int frames() {
+        return frames;
+    }
+
+    long bytes() {
+        return buffer == null ? 0 : buffer.remaining();
+    }
+
+    void add(ByteBuffer frame) {
+        int length = frame.remaining();
+        int at = reserve(length);
+        buffer.put(at, frame, frame.position(), length);
+        frames++;
+    }
+
+    // Chep frame theo codec; khong doi position cua buffer dung chung trong frame
+    void add(ChatFrame frame, ChatCodec codec) throws IOException {
+        ByteBuffer encoded = frame.encoded(codec);
+        int length = encoded.remaining();
+        int at = reserve(length);
+        buffer.put(at, encoded, encoded.position(), length);
+        frames++;
+    }
+
+    // Mo rong limit them length byte, tra ve vi tri ghi
+    private int reserve(int length) {
+        if (buffer == null) {
+            buffer = pool.acquire(Math.max(INITIAL_BYTES, length)).limit(0);
+        }
+        int end = buffer.limit();
+        if (buffer.capacity() - end < length) {
+            int pending = buffer.remaining();
+            if (buffer.capacity() - pending >= length) {
+                buffer.compact().flip();
+            } else {
+                ByteBuffer larger = pool.acquire(Math.max(pending + length, buffer.capacity() * 2));
+                larger.clear();
+                larger.put(buffer).flip();
+                pool.release(buffer);
+                buffer = larger;
+            }
+            end = buffer.limit();
+        }
+        buffer.limit(end + length);
+        return end;
+    }
+
+    // Ghi mot lan, tra ve true neu da ghi het
+    boolean write(GatheringByteChannel channel) throws IOException {
+        if (buffer == null) return true;
+        channel.write(buffer);
+        if (buffer.hasRemaining()) return false;
+        clear();
+        return true;
+    }
+
+    void clear() {
+        if (buffer != null) {
+            pool.release(buffer);
+            buffer = null;
+        }
+        frames = 0;
+    }
+}